@@ -0,0 +1,164 @@
+package com.editor.text;
+
+import android.graphics.*;
+import android.text.*;
+import android.util.Log;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import junit.framework.TestCase;
+
+/**
+ * 比较分块策略在几类典型文件上的开销，结果输出到logcat(标签BlockPolicyBenchmark)
+ * 除了预设的DEFAULT和LARGE，还比较了更小的文本块(256)，它在所有文件上都最慢，因此没有作为预设
+ *
+ * 每类文件用每种策略加载一次(EditableList.load和BlockLayout的并行测量)，然后模拟编辑:
+ * 连续输入，在随机位置插入一行，删除一小段文本，编辑时BlockLayout会重新测量被修改的文本块
+ * 每种情况先预热一轮再计时，取多轮中最快的一次，最后检查forFile为这类文件选择的策略不比最快的策略慢太多
+ */
+public class BlockPolicyBenchmark extends TestCase
+{
+	private static final String TAG = "BlockPolicyBenchmark";
+	private static final BlockPolicy[] PRESETS = {new BlockPolicy(256, 32, false, false), BlockPolicy.DEFAULT, BlockPolicy.LARGE};
+	private static final String[] PRESET_NAMES = {"256", "DEFAULT", "LARGE"};
+	private static final int ROUNDS = 5;       //计时的轮数，取最快的一轮
+	private static final int EDITS = 4000;     //每轮编辑的次数
+	private static final float TOLERANCE = 1.5f; //选择的策略最多比最快的策略慢多少倍
+
+	private ExecutorService mExecutor;
+	private TextPaint mPaint;
+
+	@Override
+	protected void setUp()
+	{
+		mExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		mPaint = new TextPaint();
+		mPaint.setTypeface(Typeface.MONOSPACE);
+		mPaint.setTextSize(36);
+	}
+	@Override
+	protected void tearDown(){
+		mExecutor.shutdown();
+	}
+
+	public void testForFile()
+	{
+		assertSame(BlockPolicy.DEFAULT, BlockPolicy.forFile("settings.json", 4 * 1024));
+		assertSame(BlockPolicy.DEFAULT, BlockPolicy.forFile("Editor.java", 128 * 1024));
+		assertSame(BlockPolicy.DEFAULT, BlockPolicy.forFile(null, 1024 * 1024));
+		assertSame(BlockPolicy.LARGE, BlockPolicy.forFile("app.LOG", 1024));
+		assertSame(BlockPolicy.DEFAULT, BlockPolicy.forFile("jquery.min.js", 90 * 1024));
+		assertSame(BlockPolicy.LARGE, BlockPolicy.forFile("Editor.java", 64 * 1024 * 1024));
+	}
+
+	public void testConfigFile(){
+		checkSelected("settings.ini", makeConfig(32 * 1024));
+	}
+	public void testSourceFile(){
+		checkSelected("Editor.java", makeSource(1024 * 1024));
+	}
+	public void testLogFile(){
+		checkSelected("app.log", makeLog(16 * 1024 * 1024));
+	}
+	public void testMinifiedFile(){
+		checkSelected("data.min.json", makeMinified(2 * 1024 * 1024));
+	}
+
+	/* 测量每种策略的开销，并检查forFile选择的策略 */
+	private void checkSelected(String name, String text)
+	{
+		BlockPolicy selected = BlockPolicy.forFile(name, text.length());
+		long[] times = new long[PRESETS.length];
+		long best = Long.MAX_VALUE;
+		long selectedTime = 0;
+		for(int i = 0; i < PRESETS.length; ++i)
+		{
+			run(PRESETS[i], text);
+			times[i] = Long.MAX_VALUE;
+			for(int r = 0; r < ROUNDS; ++r){
+				times[i] = Math.min(times[i], run(PRESETS[i], text));
+			}
+			best = Math.min(best, times[i]);
+			if(PRESETS[i] == selected){
+				selectedTime = times[i];
+			}
+			Log.i(TAG, name + " " + PRESET_NAMES[i] + ": " + times[i] / 1000 + "us");
+		}
+		assertTrue(name + " selected policy is " + selectedTime + "ns, fastest is " + best + "ns", selectedTime <= best * TOLERANCE);
+	}
+
+	/* 加载文本并模拟编辑，返回用时(纳秒) */
+	private long run(BlockPolicy policy, String text)
+	{
+		Random random = new Random(1);
+		long start = System.nanoTime();
+		EditableList list = EditableList.load(text, policy, mExecutor);
+		new BlockLayout(list, mPaint, 4, 0, 1.2f, mExecutor);
+		int cursor = list.length() / 2;
+		for(int i = 0; i < EDITS; ++i)
+		{
+			int kind = random.nextInt(10);
+			if(kind < 6){
+				//连续输入
+				list.insert(cursor, "x");
+				cursor++;
+			}
+			else if(kind < 8){
+				//在随机位置插入一行
+				cursor = random.nextInt(list.length() + 1);
+				list.insert(cursor, "value = 1;\n");
+			}
+			else{
+				int end = Math.min(list.length(), cursor + 1 + random.nextInt(40));
+				list.delete(cursor, end);
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static String makeConfig(int size)
+	{
+		StringBuilder b = new StringBuilder(size + 64);
+		Random random = new Random(2);
+		for(int i = 0; b.length() < size; ++i){
+			if(i % 12 == 0){
+				b.append("\n[section").append(i).append("]\n");
+			}
+			b.append("key").append(i).append(" = ").append(random.nextInt(100000)).append('\n');
+		}
+		return b.toString();
+	}
+	private static String makeSource(int size)
+	{
+		StringBuilder b = new StringBuilder(size + 128);
+		Random random = new Random(3);
+		while(b.length() < size)
+		{
+			int depth = 1 + random.nextInt(4);
+			for(int k = 0; k < depth; ++k){
+				b.append('\t');
+			}
+			b.append("int value").append(random.nextInt(1000)).append(" = compute(index, \"文本\", ").append(random.nextInt()).append(");\n");
+		}
+		return b.toString();
+	}
+	private static String makeLog(int size)
+	{
+		StringBuilder b = new StringBuilder(size + 128);
+		Random random = new Random(4);
+		for(long time = 0; b.length() < size; time += random.nextInt(1000)){
+			b.append("2024-01-01 00:00:").append(time).append(" I/Worker(").append(random.nextInt(30000)).append("): request ").append(random.nextInt()).append(" done\n");
+		}
+		return b.toString();
+	}
+	private static String makeMinified(int size)
+	{
+		StringBuilder b = new StringBuilder(size + 64);
+		Random random = new Random(5);
+		b.append('[');
+		while(b.length() < size){
+			b.append("{\"id\":").append(random.nextInt()).append(",\"name\":\"item\",\"tags\":[1,2,3]},");
+		}
+		return b.append("{}]").toString();
+	}
+}
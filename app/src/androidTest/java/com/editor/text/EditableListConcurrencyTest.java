@@ -0,0 +1,167 @@
+package com.editor.text;
+
+import java.util.ConcurrentModificationException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import junit.framework.TestCase;
+
+/**
+ * 开启并发访问后，一个线程修改EditableList，其它线程同时用charAt，视图，游标和快照读取
+ *
+ * 文本总是由LINE重复组成，修改只在行的边界插入或删除整行，因此任意位置index的字符总是LINE.charAt(index % LINE.length())
+ * 读取的线程不论何时读取，只要读到的是某个完整版本的文本，字符就一定符合这个规律，读到修改了一半的文本块时就会不符合或者抛出异常
+ * 视图和游标在文本修改后抛出ConcurrentModificationException是预期的，此时重新创建或定位后继续读取
+ */
+public class EditableListConcurrencyTest extends TestCase
+{
+	private static final String LINE = "0123456789abcdef\n";
+	private static final int LINES = 20000;
+	private static final int EDITS = 20000;
+	private static final int READERS = 4;
+
+	public void testConcurrentReads() throws Exception
+	{
+		StringBuilder b = new StringBuilder(LINE.length() * LINES);
+		for(int i = 0; i < LINES; ++i){
+			b.append(LINE);
+		}
+		final EditableList text = new EditableList(b, 0, b.length(), BlockPolicy.LARGE);
+		text.setConcurrentAccess(true);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final boolean[] done = new boolean[1];
+
+		Thread[] readers = new Thread[READERS];
+		for(int r = 0; r < READERS; ++r)
+		{
+			final int kind = r;
+			readers[r] = new Thread(){
+				public void run()
+				{
+					Random random = new Random(kind);
+					try{
+						while(!isDone(done)){
+							read(text, kind, random);
+						}
+					}catch(Throwable e){
+						failure.compareAndSet(null, e);
+					}
+				}
+			};
+			readers[r].start();
+		}
+
+		Random random = new Random(100);
+		for(int i = 0; i < EDITS && failure.get() == null; ++i)
+		{
+			int lines = text.length() / LINE.length();
+			int at = random.nextInt(lines + 1) * LINE.length();
+			if(random.nextBoolean() || lines < 100){
+				StringBuilder insert = new StringBuilder();
+				for(int k = random.nextInt(300); k >= 0; --k){
+					insert.append(LINE);
+				}
+				text.insert(at, insert);
+			}else{
+				int count = Math.min(lines - at / LINE.length(), 1 + random.nextInt(300));
+				text.delete(at, at + count * LINE.length());
+			}
+		}
+		synchronized(done){
+			done[0] = true;
+		}
+		for(Thread reader : readers){
+			reader.join();
+		}
+		if(failure.get() != null){
+			throw new AssertionError(failure.get());
+		}
+	}
+
+	private static boolean isDone(boolean[] done){
+		synchronized(done){
+			return done[0];
+		}
+	}
+
+	/* 用不同的方式读取文本，检查读到的字符 */
+	private static void read(EditableList text, int kind, Random random)
+	{
+		switch(kind)
+		{
+			case 0:
+				//charAt和getChars每次调用都持有读锁
+				for(int i = 0; i < 1000; ++i){
+					int length = text.length();
+					if(length == 0) return;
+					int index = random.nextInt(length);
+					try{
+						check(text.charAt(index), index);
+						char[] chars = new char[Math.min(500, length - index)];
+						text.getChars(index, index + chars.length, chars, 0);
+						for(int k = 0; k < chars.length; ++k){
+							check(chars[k], index + k);
+						}
+					}catch(IndexOutOfBoundsException e){
+						//读取前文本被缩短了
+					}
+				}
+				break;
+			case 1:
+				//游标在文本修改后失效，重新定位后继续读取
+				BlockCharCursor cursor = text.cursor();
+				while(true){
+					try{
+						int index = cursor.getIndex();
+						if(!cursor.hasNext()) break;
+						check(cursor.next(), index);
+					}catch(ConcurrentModificationException e){
+						cursor.seek(Math.min(cursor.getIndex(), text.length()));
+					}catch(IndexOutOfBoundsException e){
+						break;
+					}
+				}
+				break;
+			case 2:
+				//视图在文本修改后失效，重新创建
+				BlockCharSequence view = text.view();
+				for(int i = 0; i < 1000 && view.length() > 0; ++i){
+					int index = random.nextInt(view.length());
+					try{
+						check(view.charAt(index), index);
+					}catch(ConcurrentModificationException e){
+						view = text.view();
+					}
+				}
+				break;
+			default:
+				//在外面持有读锁时，整个扫描与同一版本的文本一致，游标不会失效
+				Lock lock = text.getLock().readLock();
+				lock.lock();
+				try{
+					BlockCharCursor locked = text.cursor();
+					int length = text.length();
+					for(int index = 0; index < length; ++index){
+						check(locked.next(), index);
+					}
+				}finally{
+					lock.unlock();
+				}
+				//快照不能在持有读锁时创建
+				TextSnapshot snapshot = text.snapshot();
+				for(int i = 0; i < 1000 && snapshot.length() > 0; ++i){
+					int index = random.nextInt(snapshot.length());
+					check(snapshot.charAt(index), index);
+				}
+				break;
+		}
+	}
+
+	private static void check(char c, int index)
+	{
+		char expected = LINE.charAt(index % LINE.length());
+		if(c != expected){
+			throw new AssertionError("char at " + index + " is " + c + ", expected " + expected);
+		}
+	}
+}
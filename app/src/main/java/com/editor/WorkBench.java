@@ -19,6 +19,7 @@ import com.parser.javaparser.*;
 import com.parser.javaparser.base.*;
 import com.parser.javaparser.base.Token.*;
 import java.util.concurrent.*;
+import java.nio.charset.*;
 import com.editor.base.async.*;
 import com.editor.text.*;
 
@@ -57,6 +58,7 @@ public class WorkBench extends Activity implements Runnable
 	private ListView mFileListView;
 	private Handler mHandler;
 	private ExecutorService mExecutorService;
+	private static final long VIEW_ONLY_THRESHOLD = 64 * 1024 * 1024; //文件的字节数达到此值时，以只读的查看模式打开
 
     @Override
     protected void onCreate(Bundle savedInstanceState)
@@ -204,97 +206,136 @@ public class WorkBench extends Activity implements Runnable
 			final String label = file.getPath();
 			int index = mEditorPages.findViewByLabel(label);
 			if(index < 0){
-				Promise<Editor> promise = createEditorS(file);
+				//编辑器立即显示，文本在加载期间逐段出现，加载完成后再着色
+				Editor editor = new Editor(WorkBench.this);
+				ArrayAdapter<String> adapter = (ArrayAdapter) mEditorList.getAdapter();
+				adapter.add(file.getName());
+				adapter.notifyDataSetChanged();
+				try{
+					mEditorPages.addPage(new ViewPager.PageData(editor, label, null));
+				}catch(Error e){}
+				
+				if(file.length() >= VIEW_ONLY_THRESHOLD){
+					//太大的文件只能查看，不着色
+					viewFile(editor, file, label);
+					return;
+				}
+				Promise<Editor> promise = editor.loadText(file, Charset.forName("UTF-8"), mExecutorService);
 				promise.then(new Promise.Callback<Editor>(){
 
 						@Override
 						public void resolve(Editor editor)
 						{
-							ArrayAdapter<String> adapter = (ArrayAdapter) mEditorList.getAdapter();
-							adapter.add(file.getName());
-							adapter.notifyDataSetChanged();
-							try{
-								mEditorPages.addPage(new ViewPager.PageData(editor, label, null));
-							}catch(Error e){}
+							colorizeS(editor);
 							Toast.makeText(WorkBench.this, label+" loaded", 0).show();
 						}
 					});
+				promise.fail(new Promise.ErrorCallback(){
+
+						@Override
+						public void reject(Throwable error)
+						{
+							//已显示的文本不完整，不着色
+							Toast.makeText(WorkBench.this, label+" load failed: "+error.getMessage(), 1).show();
+						}
+					});
 			}else{
 				mEditorPages.tabPage(index);
 			}
 		}
 		
-		private Promise<Editor> createEditorS(final File file)
+		private void viewFile(Editor editor, File file, final String label)
+		{
+			Toast.makeText(WorkBench.this, label+" is opened read-only", 0).show();
+			editor.viewText(file, mExecutorService).fail(new Promise.ErrorCallback(){
+
+					@Override
+					public void reject(Throwable error)
+					{
+						Toast.makeText(WorkBench.this, label+" load failed: "+error.getMessage(), 1).show();
+					}
+				});
+		}
+		
+		private void colorizeS(Editor editor)
 		{
-			final Promise promise = new Promise<>();
+			final Editable text = editor.getText();
+			//扫描文本的快照，它与文本共享文本块，不会额外拷贝一份完整的String，并且之后修改文本也不会影响它
+			final CharSequence code = ((EditableList)text).snapshot();
 			mExecutorService.submit(new Runnable(){
 
 					@Override
 					public void run()
 					{
 						try{
-							final Editor editor = createEditor(file);
-							mHandler.post(new Runnable(){
-
-									@Override
-									public void run()
-									{
-										//editor.refresh();
-										promise.resolve(editor);
-									}
-								});
+							colorize(code, text);
 						}catch(Exception E){
 							E.printStackTrace();
 						}
 					}
 				});
-			return promise;
-		}
-		
-		private Editor createEditor(File file)
-		{
-			Editor editor = new Editor(WorkBench.this);
-			byte[] bs = new byte[(int)file.length()];
-			try{
-				FileInputStream input = new FileInputStream(file);
-				input.read(bs);
-			}
-			catch (IOException e){}
-
-			String code = new String(bs);
-			editor.setText(code);
-			Editable text = editor.getText();
-			colorize(code, text);
-			
-			//text.setSpan(new BackgroundColorSpan(0xffff0000), text.length() - 100, text.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-			//test(editor.getText());
-			
-			return editor;
 		}
 		
 		//移动到EditorManger
-		public void colorize(String code, Editable editor)
+		public void colorize(CharSequence code, Editable editor)
 		{
 			List<Token> his = JavaParser.parser(code);
 			final int size = his.size();
 			Log.w("colorize", "token parsed, size " + his.size());
 			
-			int once = size / 100;
-			once = once == 0 ? 1 : once;
-			int last = 0;
+			//先收集所有span，然后一次性设置，EditableList可以只遍历一次文本块
+			Object[] spans = new Object[size];
+			int[] starts = new int[size];
+			int[] ends = new int[size];
+			int[] flags = new int[size];
+			int count = 0;
 			for(int i = 0; i < size; ++i)
 			{
-				int now = i / once;
-				if (last != now){
-					last = now;
-					Log.w("colorize", "span seted size " + i + ", span update at " + now + "%");
-				}
-				
 				Token hi = his.get(i);
 				int color = color(hi.type);
-				if (color != 0)
-					editor.setSpan(new ForegroundColorSpan(color), hi.start, hi.end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+				if (color != 0){
+					spans[count] = new ForegroundColorSpan(color);
+					starts[count] = hi.start;
+					ends[count] = hi.end;
+					flags[count] = Spanned.SPAN_EXCLUSIVE_EXCLUSIVE;
+					count++;
+				}
+			}
+			
+			applySpans(code, editor, spans, starts, ends, flags, count);
+		}
+		
+		/* 编辑器已经显示，只能在主线程中设置span，扫描期间文本被修改时放弃这次着色 */
+		private void applySpans(final CharSequence code, final Editable editor, final Object[] spans, final int[] starts, final int[] ends, final int[] flags, final int count)
+		{
+			mHandler.post(new Runnable(){
+
+					@Override
+					public void run()
+					{
+						if(isStale(code, editor)){
+							return;
+						}
+						if (editor instanceof EditableList){
+							((EditableList)editor).setSpans(spans, starts, ends, flags, count);
+						}
+						else{
+							for(int i = 0; i < count; ++i){
+								editor.setSpan(spans[i], starts[i], ends[i], flags[i]);
+							}
+						}
+						Log.w("colorize", "span seted size " + count);
+					}
+				});
+		}
+
+		/* 扫描的文本是否已经过时，快照记录了创建时的修改次数，修改后长度不变(例如替换同样长的文本)也能发现 */
+		private boolean isStale(CharSequence code, Editable editor)
+		{
+			if(code instanceof TextSnapshot && editor instanceof EditableList){
+				return ((TextSnapshot)code).getVersion() != ((EditableList)editor).getModCount();
 			}
+			return editor.length() != code.length();
 		}
 
 		public int color(int type)
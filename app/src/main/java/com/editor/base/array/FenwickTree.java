@@ -0,0 +1,130 @@
+package com.editor.base.array;
+
+/**
+ * 树状数组(Fenwick Tree)，维护一组非负整数的前缀和
+ * 修改单个元素和查询前缀和都是O(log n)，插入或移除元素需要重建，为O(n)
+ * 它可以代替有序的区间列表(参见ArrayUtils.findRangeContainingIndex)，
+ * 区间列表中的每个数就是前面所有元素的前缀和，但修改一个元素时不必刷新之后所有的数
+ */
+public final class FenwickTree
+{
+	private int mSize;     //元素个数
+	private int[] mValues; //每个元素的值
+	private int[] mTree;   //树状数组，下标从1开始，mTree[i]记录了(i - lowbit(i), i]范围内的元素之和
+	private int mHighBit;  //不超过mSize的最大的2的幂，用于在树上二分查找
+
+	public FenwickTree(){
+		mSize = 0;
+		mValues = EmptyArray.INT;
+		mTree = EmptyArray.INT;
+		mHighBit = 0;
+	}
+
+	public int size(){
+		return mSize;
+	}
+
+	/* 获取指定元素的值 */
+	public int get(int i){
+		return mValues[i];
+	}
+
+	/* 修改指定元素的值，O(log n) */
+	public void set(int i, int value)
+	{
+		int delta = value - mValues[i];
+		if(delta == 0){
+			return;
+		}
+		mValues[i] = value;
+		for(++i; i <= mSize; i += i & -i){
+			mTree[i] += delta;
+		}
+	}
+
+	/* 获取前count个元素之和，也就是第count个元素在区间列表中的起始位置，O(log n) */
+	public int prefix(int count)
+	{
+		int sum = 0;
+		for(; count > 0; count -= count & -count){
+			sum += mTree[count];
+		}
+		return sum;
+	}
+
+	/* 获取所有元素之和 */
+	public int total(){
+		return prefix(mSize);
+	}
+
+	/**
+	 * 与ArrayUtils.findRangeContainingIndex含义相同，返回包含index的区间在列表中的位置，
+	 * 也就是最后一个满足prefix(i) <= index的元素下标i，O(log n)
+	 * 如果index小于0，则返回0，如果index大于等于所有元素之和，则返回size - 1
+	 * 如果有多个元素的前缀和都与index相等(中间有值为0的元素)，返回最后一个
+	 * 如果没有元素，则返回0
+	 */
+	public int findRangeContainingIndex(int index)
+	{
+		if(index < 0 || mSize == 0){
+			return 0;
+		}
+		//从最高位开始向下试探，找到最大的count使得prefix(count) <= index
+		int count = 0;
+		for(int bit = mHighBit; bit > 0; bit >>= 1)
+		{
+			int next = count + bit;
+			if(next <= mSize && mTree[next] <= index){
+				count = next;
+				index -= mTree[next];
+			}
+		}
+		//前count个元素之和不超过index，因此下标为count的元素就是包含index的区间
+		return count < mSize ? count : mSize - 1;
+	}
+
+	/* 在指定位置插入一个元素，需要重建，O(n) */
+	public void insert(int i, int value)
+	{
+		mValues = GrowingArrayUtils.insert(mValues, mSize, i, value);
+		mSize++;
+		rebuild();
+	}
+
+	/* 移除指定位置的元素，需要重建，O(n) */
+	public void remove(int i)
+	{
+		mValues = GrowingArrayUtils.remove(mValues, mSize, i);
+		mSize--;
+		rebuild();
+	}
+
+	/* 用一组新的元素替换所有元素，O(n) */
+	public void setValues(int[] values, int count)
+	{
+		if(mValues.length < count){
+			mValues = ArrayUtils.newUnpaddedIntArray(GrowingArrayUtils.growSize(count));
+		}
+		System.arraycopy(values, 0, mValues, 0, count);
+		mSize = count;
+		rebuild();
+	}
+
+	/* 线性地重建整棵树，每个节点只需把自己累加到父节点上 */
+	private void rebuild()
+	{
+		if(mTree.length < mValues.length + 1){
+			mTree = ArrayUtils.newUnpaddedIntArray(mValues.length + 1);
+		}
+		for(int i = 1; i <= mSize; ++i){
+			mTree[i] = mValues[i - 1];
+		}
+		for(int i = 1; i <= mSize; ++i){
+			int parent = i + (i & -i);
+			if(parent <= mSize){
+				mTree[parent] += mTree[i];
+			}
+		}
+		mHighBit = mSize == 0 ? 0 : Integer.highestOneBit(mSize);
+	}
+}
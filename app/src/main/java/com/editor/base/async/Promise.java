@@ -5,10 +5,14 @@ public class Promise<T>
 {
 	private T value;
 	private boolean isResolved;
+	private Throwable error;
+	private boolean isRejected;
 	private List<Callback<T>> callbacks;
+	private List<ErrorCallback> errorCallbacks;
 
 	public Promise(){
 		callbacks = new ArrayList<>();
+		errorCallbacks = new ArrayList<>();
 	}
 	public Promise(T value){
 		this.value = value;
@@ -18,14 +22,20 @@ public class Promise<T>
 	public boolean isResolved(){
 		return isResolved;
 	}
+	public boolean isRejected(){
+		return isRejected;
+	}
 	public T getValue(){
 		return value;
 	}
+	public Throwable getError(){
+		return error;
+	}
 
 	//解决Promise并调用所有注册的回调
 	public void resolve(T result)
 	{
-		if(!isResolved) {
+		if(!isResolved && !isRejected) {
             this.value = result;
             this.isResolved = true;
             for(Callback<T> callback : callbacks) {
@@ -34,7 +44,19 @@ public class Promise<T>
         }
 	}
 
-	//注册一个回调函数
+	//拒绝Promise并调用所有注册的错误回调，之后不会再被解决
+	public void reject(Throwable e)
+	{
+		if(!isResolved && !isRejected) {
+			this.error = e;
+			this.isRejected = true;
+			for(ErrorCallback callback : errorCallbacks) {
+				callback.reject(e);
+			}
+		}
+	}
+
+	//注册一个回调函数，返回的Promise在回调后被解决，在此Promise被拒绝时也被拒绝
 	public Promise<T> then(final Callback<T> callback)
 	{
 		final Promise<T> nextPromise = new Promise<>();
@@ -42,6 +64,9 @@ public class Promise<T>
 			callback.resolve(value);
 			nextPromise.resolve(value);
 		}
+		else if(isRejected){
+			nextPromise.reject(error);
+		}
 		else{
 			callbacks.add(new Callback<T>(){
 					public void resolve(T result){
@@ -49,12 +74,34 @@ public class Promise<T>
 						nextPromise.resolve(result);
 					}
 				});
+			errorCallbacks.add(new ErrorCallback(){
+					public void reject(Throwable e){
+						nextPromise.reject(e);
+					}
+				});
 		}
 		return nextPromise;
 	}
 
+	//注册一个错误回调函数，在Promise被拒绝时调用
+	public Promise<T> fail(final ErrorCallback callback)
+	{
+		if(isRejected){
+			callback.reject(error);
+		}
+		else if(!isResolved){
+			errorCallbacks.add(callback);
+		}
+		return this;
+	}
+
 	public static interface Callback<T>
 	{
 		public void resolve(T result)
 	}
+
+	public static interface ErrorCallback
+	{
+		public void reject(Throwable error)
+	}
 }
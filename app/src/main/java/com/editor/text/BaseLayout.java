@@ -21,6 +21,8 @@ public abstract class BaseLayout
 	private float mLineSpacing;
 	private int mLineColor;
 	private int mTabSize;
+	private final SpanQueryResult mSpanQuery = new SpanQueryResult(); //绘制时反复使用的span查询结果
+	private volatile GlyphWidthCache mGlyphWidths; //最近使用的字符宽度缓存，测量线程中mPaint的副本也复用它
 	
 	protected BaseLayout(CharSequence base, TextPaint paint, int tabSize, int lineColor, float lineSpacing)
 	{
@@ -56,7 +58,10 @@ public abstract class BaseLayout
 			mWidth = width;
 		}
 	}
-	public void adjustLayout(){}
+	/* 画笔的属性改变后，丢弃字符宽度缓存，下次测量时重新获取 */
+	public void adjustLayout(){
+		mGlyphWidths = null;
+	}
 
 	/**
 	 * 在绘制文本前200000行时还是正常的，然后之后再往后滚动就有点偏移，到800000行时就已经有肉眼可见的偏移
@@ -177,19 +182,19 @@ public abstract class BaseLayout
 		
 		if(text instanceof Spanned)
 		{
-			Spanned sp = (Spanned) text;
-			CharacterStyle[] spans = sp.getSpans(start, end, CharacterStyle.class);
-			int spanCount = spans.length;
+			//每一行都要获取span，因此使用同一个查询结果，滚动时不会创建数组
+			final SpanQueryResult spans = mSpanQuery;
+			int spanCount = SpanUtils.getSpans((Spanned) text, start, end, CharacterStyle.class, spans);
 			
 			//先绘制背景的span
 			for(int k = 0; k < spanCount; ++k)
 			{
-				Object span = spans[k];
+				Object span = spans.getSpan(k);
 				if(span instanceof BackgroundColorSpan)
 				{
 					//将span偏移到数组范围
-					int spanStart = sp.getSpanStart(span) - start;
-					int spanEnd = sp.getSpanEnd(span) - start;
+					int spanStart = spans.getSpanStart(k) - start;
+					int spanEnd = spans.getSpanEnd(k) - start;
 					//超出可见范围的内容不绘制
 					if(spanStart < 0){
 						spanStart = 0;
@@ -211,11 +216,11 @@ public abstract class BaseLayout
 			//反向绘制文本的span，并用范围填充表，每个字符只能被绘制一次
 			for(int k = spanCount-1; k >= 0; --k)
 			{
-				Object span = spans[k];
+				Object span = spans.getSpan(k);
 				if(span instanceof ForegroundColorSpan)
 				{
-					int spanStart = sp.getSpanStart(span) - start;
-					int spanEnd = sp.getSpanEnd(span) - start;
+					int spanStart = spans.getSpanStart(k) - start;
+					int spanEnd = spans.getSpanEnd(k) - start;
 					if(spanStart < 0){
 						spanStart = 0;
 					}
@@ -231,6 +236,7 @@ public abstract class BaseLayout
 					}
 				}
 			}
+			spans.clear();
 		}
 		
 		//检查本行剩余的未绘制文本，并绘制出来
@@ -310,15 +316,28 @@ public abstract class BaseLayout
 	}
 	
 	private final float getUnitCharcterWidth(){
-		return mPaint.measureText(" ");
+		return getGlyphWidths(mPaint).getSpaceWidth();
 	}
 	private final int getTextOffset()
 	{
-		Paint.FontMetrics font = mPaint.getFontMetrics();
-		float height = font.bottom - font.top;
+		GlyphWidthCache font = getGlyphWidths(mPaint);
+		float height = font.getFontBottom() - font.getFontTop();
 		float spacingAdd = mLineSpacing - 1;
 		float textOffset = height * spacingAdd / 2;
-		return (int)(textOffset - font.ascent);
+		return (int)(textOffset - font.getFontAscent());
+	}
+	/**
+	 * 获取画笔对应的字符宽度缓存，画笔的属性改变时也会重新获取
+	 * 并行测量时每个任务使用mPaint的副本，它们的属性相同，因此都复用同一个缓存，不必进入全局的锁
+	 */
+	private GlyphWidthCache getGlyphWidths(TextPaint paint)
+	{
+		GlyphWidthCache cache = mGlyphWidths;
+		if(cache == null || !cache.matches(paint)){
+			cache = GlyphWidthCache.obtain(paint);
+			mGlyphWidths = cache;
+		}
+		return cache;
 	}
 	
 	/** 
@@ -341,8 +360,8 @@ public abstract class BaseLayout
 	}
 	/* 获取行的高度，返回的高度附加了lineSpacing */
 	public final int getLineHeight(){
-		Paint.FontMetrics font = mPaint.getFontMetrics();
-		float height = font.bottom - font.top;
+		GlyphWidthCache font = getGlyphWidths(mPaint);
+		float height = font.getFontBottom() - font.getFontTop();
 		return (int)(height * mLineSpacing);
 	}
 
@@ -583,8 +602,15 @@ public abstract class BaseLayout
 	public final void getTextWidths(char[] chars, int start, int end, TextPaint paint, float[] widths)
 	{
 		int count = end - start;
-		float tabWidth = mTabSize * paint.measureText(" ");
-		paint.getTextWidths(chars,start,count,widths);
+		GlyphWidthCache cache = getGlyphWidths(paint);
+		float tabWidth = mTabSize * cache.getSpaceWidth();
+		//等宽字体中，文本只有ASCII字符和Tab时直接按列计算，否则累加缓存的宽度，都不行才整段测量
+		if(cache.isFixedPitch() && fillColumnWidths(chars, start, end, cache.getSpaceWidth(), tabWidth, widths)){
+			return;
+		}
+		if(!cache.getTextWidths(chars, start, end, paint, widths)){
+			paint.getTextWidths(chars,start,count,widths);
+		}
 		//将Tab的宽度替换为指定大小
 		for(int i=0; i<count; ++i){
 			if(chars[i+start] == FT){
@@ -593,6 +619,31 @@ public abstract class BaseLayout
 		}
 	}
 	
+	/* 用列宽填充每个字符的宽度，遇到不是一列的字符时返回false */
+	private static boolean fillColumnWidths(char[] chars, int start, int end, float columnWidth, float tabWidth, float[] widths)
+	{
+		for(int i = start; i < end; ++i){
+			char c = chars[i];
+			if(GlyphWidthCache.isColumnChar(c)){
+				widths[i - start] = columnWidth;
+			}else if(c == FT){
+				widths[i - start] = tabWidth;
+			}else{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * 如果画笔是等宽字体，返回一列的宽度(可打印的ASCII字符的宽度)，否则返回0
+	 * 子类可以用它将只有ASCII字符的文本的坐标计算转换为列数的计算，而不必测量文本
+	 */
+	protected final float getColumnWidth(){
+		GlyphWidthCache cache = getGlyphWidths(mPaint);
+		return cache.isFixedPitch() ? cache.getSpaceWidth() : 0;
+	}
+	
 	/* 回收池 */
 	protected static final class RecylePool
 	{
@@ -0,0 +1,50 @@
+package com.editor.text;
+
+import android.text.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+
+/**
+ * 冷文本块的堆外存储区，文本存储在直接分配的大块内存(slab)中，不占用Java堆
+ *
+ * 每次存储只是在当前slab的末尾追加，不会覆盖已经存储的文本，因此冷文本块永远不会改变，
+ * 与快照共享时也不需要拷贝。文本块重新变热后，它在slab中的空间不会再使用，
+ * 直到slab中所有的冷文本块都不再被引用，整个slab才会被回收
+ *
+ * 分配空间是同步的，拷贝文本不是，因此可以在多个线程中同时存储文本
+ */
+final class BlockArena
+{
+	private CharBuffer mSlab; //当前正在追加的slab
+	private int mSlabUsed;    //当前slab中已经使用的字符数
+
+	private static final int SLAB_SIZE = 1024 * 1024; //每个slab可以容纳的字符数
+
+	/* 将text中start~end的文本拷贝到堆外，返回只读的冷文本块 */
+	ColdTextBlock store(CharSequence text, int start, int end)
+	{
+		final int len = end - start;
+		CharBuffer buffer = allocate(len);
+		char[] chars = new char[len];
+		TextUtils.getChars(text, start, end, chars, 0);
+		buffer.put(chars);
+		buffer.clear();
+		return new ColdTextBlock(buffer);
+	}
+
+	/* 在slab中分配一段长度为length的空间，当前slab不够时创建新的slab，很长的文本独占一个slab */
+	private synchronized CharBuffer allocate(int length)
+	{
+		if(mSlab == null || mSlabUsed + length > mSlab.capacity()){
+			int size = Math.max(SLAB_SIZE, length);
+			mSlab = ByteBuffer.allocateDirect(size * 2).order(ByteOrder.nativeOrder()).asCharBuffer();
+			mSlabUsed = 0;
+		}
+		CharBuffer buffer = mSlab.duplicate();
+		buffer.limit(mSlabUsed + length);
+		buffer.position(mSlabUsed);
+		mSlabUsed += length;
+		return buffer.slice();
+	}
+}
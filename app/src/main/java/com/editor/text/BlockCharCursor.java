@@ -0,0 +1,228 @@
+package com.editor.text;
+
+import android.text.*;
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 顺序读取EditableList的游标，它记住了当前所在的文本块，以及一段已读取的字符
+ *
+ * EditableList.charAt每次都要查找文本块，逐个字符扫描时开销为O(log n)
+ * 游标只在走出当前文本块时才移动到相邻的文本块，因此向前或向后逐个扫描时均摊开销为O(1)
+ * 词法分析，括号匹配和搜索应该使用游标，而不是反复调用charAt
+ *
+ * 游标在EditableList修改文本或合并文本块后会失效，之后调用next等方法会抛出ConcurrentModificationException，
+ * 但可以调用seek重新定位，使游标再次有效
+ *
+ * EditableList开启了并发访问时，定位和每次从文本块读取一段字符都持有读锁，并在锁内检查游标是否有效，
+ * 因此其它线程可以在主线程编辑时使用游标，文本修改后游标会抛出ConcurrentModificationException，而不会读到修改了一半的文本块
+ * 从缓存的字符中读取时不加锁，需要整个扫描与同一版本的文本一致时，应该在外面持有getLock().readLock()
+ */
+public final class BlockCharCursor
+{
+	private final EditableList mText;
+	private int mModCount; //定位时EditableList文本或文本块的修改次数
+	private int mIndex;    //下个读取的位置
+
+	private int mBlock = -1;  //当前文本块的下标
+	private int mBlockStart;  //当前文本块的起始位置
+	private int mBlockEnd;    //当前文本块的结束位置
+
+	private final char[] mBuf = new char[BUFFER_SIZE]; //从当前文本块读取的一段字符
+	private int mBufStart;  //mBuf中字符的起始位置
+	private int mBufEnd;    //mBuf中字符的结束位置
+
+	private static final int BUFFER_SIZE = 256;
+
+	BlockCharCursor(EditableList text, int index)
+	{
+		mText = text;
+		seek(index);
+	}
+
+	/**
+	 * 将游标移动到index，下次调用next将返回index处的字符
+	 * 如果文本已经修改，这会丢弃之前缓存的文本块，使游标再次有效
+	 */
+	public void seek(int index)
+	{
+		Lock lock = mText.lockRead();
+		try{
+			seekLocked(index);
+		}finally{
+			EditableList.unlock(lock);
+		}
+	}
+	private void seekLocked(int index)
+	{
+		int len = mText.length();
+		if (index < 0 || index > len) {
+			throw new IndexOutOfBoundsException("seek: " + index + " out of length " + len);
+		}
+		int modCount = mText.getBlockModCount();
+		if(modCount != mModCount){
+			//文本已经修改，缓存的文本块和字符都不再可靠
+			mModCount = modCount;
+			mBlock = -1;
+			mBlockStart = mBlockEnd = 0;
+			mBufStart = mBufEnd = 0;
+		}
+		mIndex = index;
+	}
+	public int getIndex(){
+		return mIndex;
+	}
+	public int length(){
+		return mText.length();
+	}
+	/* 游标是否还有效，也就是EditableList在上次定位之后还没有修改过文本或文本块 */
+	public boolean isValid(){
+		return mText.getBlockModCount() == mModCount;
+	}
+
+	public boolean hasNext(){
+		return mIndex < mText.length();
+	}
+	public boolean hasPrevious(){
+		return mIndex > 0;
+	}
+
+	/* 返回当前位置的字符，并向后移动一个字符 */
+	public char next()
+	{
+		checkValid();
+		int index = mIndex;
+		if(index < mBufStart || index >= mBufEnd){
+			fillForward(index);
+		}
+		mIndex = index + 1;
+		return mBuf[index - mBufStart];
+	}
+	/* 向前移动一个字符，并返回该字符 */
+	public char previous()
+	{
+		checkValid();
+		int index = mIndex - 1;
+		if(index < mBufStart || index >= mBufEnd)
+		{
+			if(index < 0){
+				throw new IndexOutOfBoundsException("previous: " + index + " < 0");
+			}
+			fillBackward(index);
+		}
+		mIndex = index;
+		return mBuf[index - mBufStart];
+	}
+	/* 返回当前位置的字符，但不移动游标 */
+	public char peek()
+	{
+		char c = next();
+		mIndex--;
+		return c;
+	}
+
+	/**
+	 * 从当前位置开始，将至多count个字符拷贝到dest中，并将游标移动到拷贝的字符之后
+	 * 直接从文本块中拷贝，不经过缓存的字符，返回实际拷贝的字符数，已经到末尾时返回0
+	 */
+	public int fill(char[] dest, int destoff, int count)
+	{
+		if(destoff < 0 || count < 0 || destoff + count > dest.length){
+			throw new IndexOutOfBoundsException("fill: " + destoff + " + " + count + " out of length " + dest.length);
+		}
+		Lock lock = mText.lockRead();
+		try{
+			checkValid();
+			final int end = Math.min(mIndex + count, mText.length());
+			int index = mIndex;
+			while(index < end)
+			{
+				moveToBlock(index);
+				int e = Math.min(end, mBlockEnd);
+				mText.getBlock(mBlock).getChars(index - mBlockStart, e - mBlockStart, dest, destoff);
+				destoff += e - index;
+				index = e;
+			}
+			count = index - mIndex;
+			mIndex = index;
+			return count;
+		}finally{
+			EditableList.unlock(lock);
+		}
+	}
+	public int fill(char[] dest){
+		return fill(dest, 0, dest.length);
+	}
+
+	/* 从index开始，读取当前文本块中之后的一段字符 */
+	private void fillForward(int index)
+	{
+		Lock lock = mText.lockRead();
+		try{
+			checkValid();
+			if(index >= mText.length()){
+				throw new IndexOutOfBoundsException("next: " + index + " >= length " + mText.length());
+			}
+			moveToBlock(index);
+			int end = Math.min(mBlockEnd, index + BUFFER_SIZE);
+			mText.getBlock(mBlock).getChars(index - mBlockStart, end - mBlockStart, mBuf, 0);
+			mBufStart = index;
+			mBufEnd = end;
+		}finally{
+			EditableList.unlock(lock);
+		}
+	}
+	/* 读取当前文本块中index之前的一段字符，包含index */
+	private void fillBackward(int index)
+	{
+		Lock lock = mText.lockRead();
+		try{
+			checkValid();
+			moveToBlock(index);
+			int start = Math.max(mBlockStart, index + 1 - BUFFER_SIZE);
+			mText.getBlock(mBlock).getChars(start - mBlockStart, index + 1 - mBlockStart, mBuf, 0);
+			mBufStart = start;
+			mBufEnd = index + 1;
+		}finally{
+			EditableList.unlock(lock);
+		}
+	}
+
+	/**
+	 * 移动到index所在的文本块，index必须在文本范围内
+	 * 如果index在当前或相邻的文本块中，只需一次比较，否则才查找文本块
+	 */
+	private void moveToBlock(int index)
+	{
+		if(mBlock >= 0)
+		{
+			if(index >= mBlockStart && index < mBlockEnd){
+				return;
+			}
+			if(index == mBlockEnd && mBlock + 1 < mText.getBlockSize()){
+				//走到下个文本块
+				mBlock++;
+				mBlockStart = mBlockEnd;
+				mBlockEnd = mBlockStart + mText.getBlock(mBlock).length();
+				return;
+			}
+			if(index == mBlockStart - 1 && mBlock > 0){
+				//走到上个文本块
+				mBlock--;
+				mBlockEnd = mBlockStart;
+				mBlockStart = mBlockEnd - mText.getBlock(mBlock).length();
+				return;
+			}
+		}
+		mBlock = mText.findBlockAfterIndex(index);
+		mBlockStart = mText.getBlockStart(mBlock);
+		mBlockEnd = mBlockStart + mText.getBlock(mBlock).length();
+	}
+
+	private void checkValid()
+	{
+		if(mText.getBlockModCount() != mModCount){
+			throw new ConcurrentModificationException("text changed after the cursor was positioned");
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package com.editor.text;
+
+import android.text.*;
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * EditableList中指定范围的只读视图，它不拷贝任何文本，charAt和getChars直接从文本块中读取
+ * 视图只在创建它的EditableList下次修改文本之前有效，之后访问它会抛出ConcurrentModificationException
+ * 词法分析和搜索可以直接扫描它，而不用先将整个文本拷贝为String
+ * 逐个字符扫描时，getChars批量读取比charAt更快，因为charAt每次都要查找文本块
+ * EditableList开启了并发访问时，每次读取都持有读锁，并在锁内检查视图是否有效
+ */
+public final class BlockCharSequence implements CharSequence, GetChars
+{
+	private final EditableList mText;
+	private final int mStart;
+	private final int mEnd;
+	private final int mModCount; //创建视图时，EditableList的修改次数
+
+	BlockCharSequence(EditableList text, int start, int end)
+	{
+		mText = text;
+		mStart = start;
+		mEnd = end;
+		mModCount = text.getModCount();
+	}
+
+	/* 视图是否还有效，也就是EditableList在此之后还没有修改过文本 */
+	public boolean isValid(){
+		return mText.getModCount() == mModCount;
+	}
+	private void checkValid()
+	{
+		if(mText.getModCount() != mModCount){
+			throw new ConcurrentModificationException("text changed after the view was created");
+		}
+	}
+
+	public int length(){
+		return mEnd - mStart;
+	}
+	public char charAt(int index)
+	{
+		if (index < 0 || index >= mEnd - mStart) {
+			throw new IndexOutOfBoundsException("charAt: " + index + " out of length " + (mEnd - mStart));
+		}
+		Lock lock = mText.lockRead();
+		try{
+			checkValid();
+			return mText.charAtLocked(mStart + index);
+		}finally{
+			EditableList.unlock(lock);
+		}
+	}
+	public void getChars(int start, int end, char[] dest, int destoff)
+	{
+		checkRange("getChars", start, end);
+		Lock lock = mText.lockRead();
+		try{
+			checkValid();
+			mText.getCharsLocked(mStart + start, mStart + end, dest, destoff);
+		}finally{
+			EditableList.unlock(lock);
+		}
+	}
+	public CharSequence subSequence(int start, int end)
+	{
+		checkValid();
+		checkRange("subSequence", start, end);
+		return new BlockCharSequence(mText, mStart + start, mStart + end);
+	}
+	public String toString()
+	{
+		int len = mEnd - mStart;
+		char[] buf = new char[len];
+		getChars(0, len, buf, 0);
+		return new String(buf);
+	}
+
+	private void checkRange(final String operation, int start, int end)
+	{
+		if (start < 0 || end < start || end > mEnd - mStart) {
+			throw new IndexOutOfBoundsException(operation + " (" + start + " ... " + end + ") out of length " + (mEnd - mStart));
+		}
+	}
+}
@@ -1,6 +1,10 @@
 package com.editor.text;
 import android.text.*;
 import com.editor.base.array.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * 建立在分块文本容器上的Layout，
@@ -14,25 +18,76 @@ public class BlockLayout extends BaseLayout implements BlockListener
 	private int mBlockSize;        //文本块个数
 	private TextBlock[] mBlocks;   //每个文本块的换行符的数量
 	private int[] mBlockStartLine; //每个文本块的起始行数(累计于前面文本块)
+	private FenwickTree mBlockLines; //文本块很多时，用树状数组记录每个文本块的行数，此时由它代替mBlockStartLine
+	private int mLowBlockLineMark;   //记录了mBlockStartLine应该从哪里开始刷新
+	private LineWidthIndex mLongLine; //最近使用的很长的行的宽度索引
 
-	public BlockLayout(EditableList base, TextPaint paint, int tabSize, int lineColor, float lineSpacing)
+	private static final int PARALLEL_MEASURE_THRESHOLD = 256; //文本块的个数达到此值时，才并行测量
+	private static final int BLOCK_TREE_THRESHOLD = 512; //文本块的个数达到此值时，切换到树状数组
+	private static final int LONG_LINE_BLOCKS = 16; //行跨越的文本块达到此值时，为它建立宽度索引
+
+	public BlockLayout(EditableList base, TextPaint paint, int tabSize, int lineColor, float lineSpacing){
+		this(base, paint, tabSize, lineColor, lineSpacing, null);
+	}
+	/**
+	 * 如果executor不为null并且文本块很多，在executor中并行测量每个文本块的行和宽度
+	 * 每个任务使用自己的画笔拷贝，因为同一个画笔不能在多个线程中同时测量
+	 */
+	public BlockLayout(EditableList base, TextPaint paint, int tabSize, int lineColor, float lineSpacing, ExecutorService executor)
 	{
 		super(base, paint, tabSize, lineColor, lineSpacing);
 		mLineCount = 0;
 		mBlockSize = 0;
 		mBlocks = EmptyArray.emptyArray(TextBlock.class);
 		mBlockStartLine = EmptyArray.INT;
+		mLowBlockLineMark = 0;
 		
 		//测量所有文本块以初始化数据
 		int count = base.getBlockSize();
-		for(int i = 0; i < count; ++i){
-			onBlockAdded(i);
-			afterBlockTextInserted(i, 0, base.getBlock(i).length());
+		if(executor != null && count >= PARALLEL_MEASURE_THRESHOLD){
+			measureBlocks(base, paint, executor);
+		}
+		else{
+			for(int i = 0; i < count; ++i){
+				onBlockAdded(i);
+				afterBlockTextInserted(i, 0, base.getBlock(i).length());
+			}
 		}
 		afterBlocksChanged(0, 0, base.length());
 		//等待后续的测量
 		base.setBlockListener(this);
 	}
+	/* 并行测量所有文本块，然后累计行数 */
+	private void measureBlocks(final EditableList base, final TextPaint paint, ExecutorService executor)
+	{
+		final int count = base.getBlockSize();
+		final TextBlock[] blocks = new TextBlock[count];
+		final int taskCount = Math.min(count, Runtime.getRuntime().availableProcessors() * 4);
+		List<Future<?>> futures = new ArrayList<>(taskCount);
+		for(int t = 0; t < taskCount; ++t)
+		{
+			final int from = (int) ((long) count * t / taskCount);
+			final int to = (int) ((long) count * (t + 1) / taskCount);
+			final TextPaint taskPaint = new TextPaint(paint);
+			futures.add(executor.submit(new Runnable(){
+				public void run()
+				{
+					for(int k = from; k < to; ++k){
+						Editable block = base.getBlock(k);
+						blocks[k] = new TextBlock(block, 0, block.length(), taskPaint);
+					}
+				}
+			}));
+		}
+		EditableList.waitAll(futures);
+
+		mBlocks = blocks;
+		mBlockStartLine = new int[count];
+		mBlockSize = count;
+		for(int k = 0; k < count; ++k){
+			mLineCount += blocks[k].lineCount;
+		}
+	}
 	
 	/* 返回行数，行数是换行符数量加1 */
 	public int getLineCount(){
@@ -46,7 +101,7 @@ public class BlockLayout extends BaseLayout implements BlockListener
 		if(line > mLineCount) return getText().length();
 		
 		int id = getLineAtBlock(line);
-		int startLine = mBlockStartLine[id];
+		int startLine = getBlockStartLine(id);
 		int startIndex = ((EditableList)getText()).getBlockStart(id);
 		int toLine = line - startLine;
 		int offset = mBlocks[id].getLineBlockStart(toLine);
@@ -61,7 +116,7 @@ public class BlockLayout extends BaseLayout implements BlockListener
 		
 		EditableList text = (EditableList) getText();
 		int id = text.findBlockAfterIndex(offset);
-		int startLine = mBlockStartLine[id];
+		int startLine = getBlockStartLine(id);
 		int startIndex = text.getBlockStart(id);
 		int index = offset - startIndex;
 		int kid = mBlocks[id].findLineBlockContainingIndex(index);
@@ -73,6 +128,7 @@ public class BlockLayout extends BaseLayout implements BlockListener
 		mBlocks = GrowingArrayUtils.insert(mBlocks, mBlockSize, i, new TextBlock());
 		mBlockStartLine = GrowingArrayUtils.insert(mBlockStartLine, mBlockSize, i, 0);
 		mBlockSize++;
+		invalidateLineMark(i);
 	}
 
 	public void onBlockRemoved(int i)
@@ -80,6 +136,7 @@ public class BlockLayout extends BaseLayout implements BlockListener
 		mBlocks = GrowingArrayUtils.remove(mBlocks, mBlockSize, i);
 		mBlockStartLine = GrowingArrayUtils.remove(mBlockStartLine, mBlockSize, i);
 		mBlockSize--;
+		invalidateLineMark(i);
 	}
 
 	public void beforeBlockTextDeleted(int i, int start, int end)
@@ -87,6 +144,9 @@ public class BlockLayout extends BaseLayout implements BlockListener
 		Editable block = ((EditableList)getText()).getBlock(i);
 		int delete = mBlocks[i].beforeBlockTextDeleted(block, start, end);
 		mLineCount -= delete;
+		if(delete != 0){
+			invalidateBlockLines(i);
+		}
 	}
 
 	public void afterBlockTextInserted(int i, int start, int end)
@@ -94,16 +154,16 @@ public class BlockLayout extends BaseLayout implements BlockListener
 		Editable block = ((EditableList)getText()).getBlock(i);
 		int insert = mBlocks[i].afterBlockTextInserted(block, start, end);
 		mLineCount += insert;
+		if(insert != 0){
+			invalidateBlockLines(i);
+		}
 	}
 
 	public void afterBlocksChanged(int start, int before, int after)
 	{
-		//刷新每个文本块的起始行数
-		//文本变化后数组长度应该大于0，因为数组只会增长而不会缩小
-		mBlockStartLine[0] = 0;
-		for(int i = 1; i < mBlockSize; ++i){
-			mBlockStartLine[i] = mBlockStartLine[i-1] + mBlocks[i-1].lineCount;
-		}
+		//只刷新行数改变的文本块之后的起始行数，只输入一个字符时什么也不用做
+		refreshBlockLines();
+		mLongLine = null;
 		
 		//测量文本宽度，只需测量修改范围涉及到的行即可，因为文本块的调整不会影响行的布局
 		//删除文本时，只需测量单点所在的行，这可能是两行连接到一起
@@ -144,15 +204,25 @@ public class BlockLayout extends BaseLayout implements BlockListener
 		private int lineCount;   //文本块中的换行符数量
 		private int[] lineIndex; //文本块中的每个换行符在文本块中的下标
 		private float[] lineBlockWidth; //文本块中的每一行的宽度，不包含换行符
+		private int wideCount;   //文本块中不是一列的字符数量(换行符除外)，为0时等宽字体可以按列计算坐标
 		
 		public TextBlock(){
 			this("", 0, 0);
 		}
 		public TextBlock(CharSequence text, int start, int end){
+			this(text, start, end, getPaint());
+		}
+		/* 使用指定的画笔测量，用于在其它线程中测量 */
+		public TextBlock(CharSequence text, int start, int end, TextPaint paint)
+		{
 			lineCount = 0;
 			lineIndex = EmptyArray.INT;
 			lineBlockWidth = EmptyArray.FLOAT;
-			reflow(text, start, end);
+			int length = end - start;
+			char[] chars = RecylePool.obtainCharArray(length);
+			TextUtils.getChars(text, start, end, chars, 0);
+			reflow(chars, length, paint);
+			RecylePool.recyleCharArray(chars);
 		}
 		
 		/**
@@ -207,23 +277,72 @@ public class BlockLayout extends BaseLayout implements BlockListener
 		 
 		public int beforeBlockTextDeleted(Editable block, int start, int end)
 		{
-			final int oldLineCount = lineCount;
-			int length = block.length() - end + start;
+			//删除范围内的换行符被移除，删除范围两侧的行块连接为一个行块，只测量这个行块
+			final int first = findLineBlockContainingIndex(start);
+			final int delete = findLineBlockContainingIndex(end) - first;
+			final int lineStart = getLineBlockStart(first);
+			final int lineEnd = getLineBlockEnd(block.length(), first + delete);
+			int length = start - lineStart + lineEnd - end;
 			char[] chars = RecylePool.obtainCharArray(length);
 			
 			//获取删除范围两侧的文本来测量
-			TextUtils.getChars(block, 0, start, chars, 0);
-			TextUtils.getChars(block, end, block.length(), chars, start);
-			reflow(chars, length);
+			TextUtils.getChars(block, lineStart, start, chars, 0);
+			TextUtils.getChars(block, end, lineEnd, chars, start - lineStart);
+			float width = measureText(chars, 0, length, getPaint());
+			if(wideCount > 0){
+				//统计被删除的不是一列的字符
+				char[] deleted = RecylePool.obtainCharArray(end - start);
+				TextUtils.getChars(block, start, end, deleted, 0);
+				wideCount -= countWideChars(deleted, 0, end - start);
+				RecylePool.recyleCharArray(deleted);
+			}
 			RecylePool.recyleCharArray(chars);
-			return oldLineCount - lineCount;
+			
+			//移除被删除的换行符，之后的换行符向前移动
+			removeLines(first, delete);
+			for(int i = first; i < lineCount; ++i){
+				lineIndex[i] -= end - start;
+			}
+			lineBlockWidth[first] = width;
+			return delete;
 		}
 		
 		public int afterBlockTextInserted(Editable block, int start, int end)
 		{
-			final int oldLineCount = lineCount;
-			reflow(block, 0, block.length());
-			return lineCount - oldLineCount;
+			//插入的文本在start所在的行块中，如果插入了换行符会将这个行块拆开，只测量拆开的行块
+			final int len = end - start;
+			final int first = findLineBlockContainingIndex(start);
+			final int lineStart = getLineBlockStart(first);
+			final int lineEnd = first < lineCount ? lineIndex[first] + len : block.length();
+			int length = lineEnd - lineStart;
+			char[] chars = RecylePool.obtainCharArray(length);
+			TextUtils.getChars(block, lineStart, lineEnd, chars, 0);
+			
+			//统计插入的换行符，之后的换行符向后移动
+			int insert = 0;
+			for(int i = start; i < end; ++i){
+				if(chars[i - lineStart] == '\n'){
+					insert++;
+				}
+			}
+			wideCount += countWideChars(chars, start - lineStart, end - lineStart);
+			insertLines(first, insert);
+			for(int i = first + insert; i < lineCount; ++i){
+				lineIndex[i] += len;
+			}
+			//记录插入的换行符位置，并测量拆开的行块
+			for(int i = start, line = first; i < end; ++i){
+				if(chars[i - lineStart] == '\n'){
+					lineIndex[line++] = i;
+				}
+			}
+			for(int line = first; line <= first + insert; ++line){
+				int blockStart = getLineBlockStart(line) - lineStart;
+				int blockEnd = getLineBlockEnd(block.length(), line) - lineStart;
+				lineBlockWidth[line] = measureText(chars, blockStart, blockEnd, getPaint());
+			}
+			RecylePool.recyleCharArray(chars);
+			return insert;
 		}
 		
 		public void adjustBlock(Editable block){
@@ -239,8 +358,11 @@ public class BlockLayout extends BaseLayout implements BlockListener
 			RecylePool.recyleCharArray(chars);
 		}
 		
+		private void reflow(char[] chars, int length){
+			reflow(chars, length, getPaint());
+		}
 		/* 重新测量整个文本块，并调整占用的空间，使其尽可能小 */
-		private void reflow(char[] chars, int length)
+		private void reflow(char[] chars, int length, TextPaint paint)
 		{
 			//统计文本换行符数量
 			lineCount = 0;
@@ -249,6 +371,7 @@ public class BlockLayout extends BaseLayout implements BlockListener
 					lineCount++;
 				}
 			}
+			wideCount = countWideChars(chars, 0, length);
 			
 			//根据换行符数量调整数组长度
 			int capacity1 = calcCapacity(lineCount, lineIndex.length);
@@ -270,7 +393,6 @@ public class BlockLayout extends BaseLayout implements BlockListener
 			}
 			
 			//测量文本块每一行的宽度
-			TextPaint paint = getPaint();
 			for(int line = 0; line <= lineCount; ++line){
 				int start = getLineBlockStart(line);
 				int end = getLineBlockEnd(length, line);
@@ -278,6 +400,74 @@ public class BlockLayout extends BaseLayout implements BlockListener
 			}
 		}
 		
+		/* 在第line个换行符处腾出count个换行符的位置，它们之后的行块也一起向后移动，腾出的位置由调用者填充 */
+		private void insertLines(int line, int count)
+		{
+			if(count == 0){
+				return;
+			}
+			final int newCount = lineCount + count;
+			int[] index = lineIndex;
+			float[] width = lineBlockWidth;
+			int capacity1 = calcCapacity(newCount, lineIndex.length);
+			int capacity2 = calcCapacity(newCount+1, lineBlockWidth.length);
+			if(capacity1 != lineIndex.length){
+				index = ArrayUtils.newUnpaddedIntArray(capacity1);
+				System.arraycopy(lineIndex, 0, index, 0, line);
+			}
+			if(capacity2 != lineBlockWidth.length){
+				width = ArrayUtils.newUnpaddedFloatArray(capacity2);
+				System.arraycopy(lineBlockWidth, 0, width, 0, line + 1);
+			}
+			System.arraycopy(lineIndex, line, index, line + count, lineCount - line);
+			System.arraycopy(lineBlockWidth, line + 1, width, line + 1 + count, lineCount - line);
+			lineIndex = index;
+			lineBlockWidth = width;
+			lineCount = newCount;
+		}
+		
+		/* 移除从第line个换行符开始的count个换行符，它们之后的行块也一起向前移动 */
+		private void removeLines(int line, int count)
+		{
+			if(count == 0){
+				return;
+			}
+			final int newCount = lineCount - count;
+			int[] index = lineIndex;
+			float[] width = lineBlockWidth;
+			int capacity1 = calcCapacity(newCount, lineIndex.length);
+			int capacity2 = calcCapacity(newCount+1, lineBlockWidth.length);
+			if(capacity1 != lineIndex.length){
+				index = ArrayUtils.newUnpaddedIntArray(capacity1);
+				System.arraycopy(lineIndex, 0, index, 0, line);
+			}
+			if(capacity2 != lineBlockWidth.length){
+				width = ArrayUtils.newUnpaddedFloatArray(capacity2);
+				System.arraycopy(lineBlockWidth, 0, width, 0, line + 1);
+			}
+			System.arraycopy(lineIndex, line + count, index, line, newCount - line);
+			System.arraycopy(lineBlockWidth, line + 1 + count, width, line + 1, newCount - line);
+			lineIndex = index;
+			lineBlockWidth = width;
+			lineCount = newCount;
+		}
+		
+		/* 文本块中的行块是否只有一列的字符，等宽字体中可以直接用列数计算坐标 */
+		public boolean isColumnBlock(){
+			return wideCount == 0;
+		}
+		
+		private int countWideChars(char[] chars, int start, int end)
+		{
+			int count = 0;
+			for(int i = start; i < end; ++i){
+				if(chars[i] != '\n' && !GlyphWidthCache.isColumnChar(chars[i])){
+					count++;
+				}
+			}
+			return count;
+		}
+		
 		private int calcCapacity(int count, int length)
 		{
 			final int ensureCount = count + 10;
@@ -328,7 +518,7 @@ public class BlockLayout extends BaseLayout implements BlockListener
 		//如果i < j，说明行跨越多个文本块，则从第i块的最后一块开始，一直遍历到第j块的第一块，中间块全范围调用
 		//多块文本块时，可能会有空的行块，但并不影响结果
 		if(i == j){
-			int at = line - mBlockStartLine[i];
+			int at = line - getBlockStartLine(i);
 			seer.nextBlock(eList.getBlock(i), mBlocks[i], at);
 		}
 		else if(i < j){
@@ -348,9 +538,69 @@ public class BlockLayout extends BaseLayout implements BlockListener
 	 * 这意味着，要寻找指定的换行所在的文本块，需要先找到它等于某个文本块的起始行数的文本块，此换行应该在它之前的文本块
 	 * 为了避免单行文本太长跨越了多个文本块，导致很多文本块的startLine相同，所以这里应该找到最后面的文本块，也就是换行符的那个
 	 */
-	private int getLineAtBlock(int line){
+	private int getLineAtBlock(int line)
+	{
+		if(mBlockLines != null){
+			//文本块很多时，在树状数组中查找，O(log n)
+			return mBlockLines.findRangeContainingIndex(line - 1);
+		}
 		return ArrayUtils.findRangeContainingIndex(mBlockStartLine, mBlockSize, line - 1);
 	}
+	/* 获取文本块的起始行数 */
+	private int getBlockStartLine(int id){
+		return mBlockLines == null ? mBlockStartLine[id] : mBlockLines.prefix(id);
+	}
+	
+	/* 在文本块改变后，刷新每个文本块的起始行数 */
+	private void refreshBlockLines()
+	{
+		//文本块很多时，切换到树状数组，文本块变少后再切换回mBlockStartLine，两次切换之间留有余地以免来回切换
+		if(mBlockLines == null && mBlockSize >= BLOCK_TREE_THRESHOLD){
+			mBlockLines = new FenwickTree();
+			invalidateLineMark(0);
+		}
+		else if(mBlockLines != null && mBlockSize < BLOCK_TREE_THRESHOLD / 2){
+			mBlockLines = null;
+			invalidateLineMark(0);
+		}
+		
+		if(mBlockLines != null){
+			//使用树状数组时，文本块的行数已经在invalidateBlockLines中修改了，只有添加移除文本块时需要重建
+			if(mLowBlockLineMark != Integer.MAX_VALUE){
+				int[] lines = SpanUtils.obtain(mBlockSize);
+				for(int i = 0; i < mBlockSize; ++i){
+					lines[i] = mBlocks[i].lineCount;
+				}
+				mBlockLines.setValues(lines, mBlockSize);
+				SpanUtils.recycle(lines);
+			}
+		}
+		else{
+			//文本变化后数组长度应该大于0，因为数组只会增长而不会缩小
+			if(mLowBlockLineMark == 0){
+				mBlockStartLine[mLowBlockLineMark++] = 0;
+			}
+			for(int i = mLowBlockLineMark; i < mBlockSize; ++i){
+				mBlockStartLine[i] = mBlockStartLine[i-1] + mBlocks[i-1].lineCount;
+			}
+		}
+		mLowBlockLineMark = Integer.MAX_VALUE;
+	}
+	/* 在添加移除文本块时或文本块的行数改变时，刷新mLowBlockLineMark */
+	private void invalidateLineMark(int i){
+		mLowBlockLineMark = i <= mLowBlockLineMark ? i : mLowBlockLineMark;
+	}
+	/* 在文本块的行数改变后，刷新该文本块的行数 */
+	private void invalidateBlockLines(int i)
+	{
+		if(mBlockLines != null && mLowBlockLineMark == Integer.MAX_VALUE){
+			//使用树状数组并且文本块没有添加移除时，直接修改树中该文本块的行数，O(log n)
+			mBlockLines.set(i, mBlocks[i].lineCount);
+		}else{
+			//否则等待之后在refreshBlockLines中一并刷新
+			invalidateLineMark(i);
+		}
+	}
 
 	@Override
 	public float getLineWidth(int line)
@@ -358,6 +608,10 @@ public class BlockLayout extends BaseLayout implements BlockListener
 		if(line < 0) line = 0;
 		else if(line > mLineCount) line = mLineCount;
 		
+		LineWidthIndex index = getLineWidthIndex(line);
+		if(index != null){
+			return (float)index.widths[index.count];
+		}
 		LineBlockSeer seer = new LineBlockSeer(){
 			public boolean nextBlock(Editable text, TextBlock block, int line){
 				joinBlock(text, block, line);
@@ -376,6 +630,20 @@ public class BlockLayout extends BaseLayout implements BlockListener
 		
 		int lineNum = getLineForOffset(offset);
 		final int lineOff = offset - getLineStart(lineNum);
+		final float columnWidth = getColumnWidth();
+		
+		LineWidthIndex index = getLineWidthIndex(lineNum);
+		if(index != null){
+			//很长的行，二分查找offset所在的文本块，只测量这个文本块
+			int k = index.findBlockForOffset(lineOff);
+			if(k == index.count){
+				return (float)index.widths[k];
+			}
+			int id = index.firstBlock + k;
+			int line = k == 0 ? mBlocks[id].lineCount : 0;
+			Editable text = ((EditableList)getText()).getBlock(id);
+			return (float)(index.widths[k] + offsetHorizontalInBlock(text, mBlocks[id], line, lineOff - index.lengths[k], columnWidth));
+		}
 		LineBlockSeer seer = new LineBlockSeer(){
 			public boolean nextBlock(Editable text, TextBlock block, int line)
 			{
@@ -385,12 +653,7 @@ public class BlockLayout extends BaseLayout implements BlockListener
 				int blockLength = blockEnd - blockStart;
 				
 				if (this.start + blockLength > lineOff){
-					int overLength = lineOff - this.start;
-					if (overLength <= blockLength / 2){
-						this.point += measureText(text, blockStart, blockStart+overLength, getPaint());
-					}else{
-						this.point = this.point + blockWidth - measureText(text, blockStart+overLength, blockEnd, getPaint());
-					}
+					this.point += offsetHorizontalInBlock(text, block, line, lineOff - this.start, columnWidth);
 					return false;
 				}
 				joinBlock(blockStart, blockEnd, blockWidth);
@@ -407,6 +670,20 @@ public class BlockLayout extends BaseLayout implements BlockListener
 		if(line < 0) line = 0;
 		else if(line > mLineCount) line = mLineCount;
 		
+		final float columnWidth = getColumnWidth();
+		LineWidthIndex index = getLineWidthIndex(line);
+		if(index != null){
+			//很长的行，二分查找horiz所在的文本块，只测量这个文本块
+			int k = index.findBlockForHorizontal(horiz);
+			int offset = index.lengths[k];
+			if(k < index.count){
+				int id = index.firstBlock + k;
+				int at = k == 0 ? mBlocks[id].lineCount : 0;
+				Editable text = ((EditableList)getText()).getBlock(id);
+				offset += offsetForHorizontalInBlock(text, mBlocks[id], at, index.widths[k], horiz, columnWidth);
+			}
+			return getLineStart(line) + offset;
+		}
 		LineBlockSeer seer = new LineBlockSeer(){
 			public boolean nextBlock(Editable text, TextBlock block, int line)
 			{
@@ -415,8 +692,7 @@ public class BlockLayout extends BaseLayout implements BlockListener
 				float blockWidth = block.getLineBlockWidth(line);
 				
 				if(this.point + blockWidth > horiz){
-					int offset = measureOffsetOpened(text, blockStart, blockEnd, this.point, horiz, getPaint());
-					this.start += offset - blockStart;
+					this.start += offsetForHorizontalInBlock(text, block, line, this.point, horiz, columnWidth);
 					return false;
 				}
 				joinBlock(blockStart, blockEnd, blockWidth);
@@ -427,6 +703,132 @@ public class BlockLayout extends BaseLayout implements BlockListener
 		return getLineStart(line) + seer.start;
 	}
 	
+	/* 获取文本块的第line个行块中，行块起始位置到第overLength个字符的宽度 */
+	private double offsetHorizontalInBlock(Editable text, TextBlock block, int line, int overLength, float columnWidth)
+	{
+		int blockStart = block.getLineBlockStart(line);
+		int blockEnd = block.getLineBlockEnd(text.length(), line);
+		int blockLength = blockEnd - blockStart;
+		if (columnWidth > 0 && block.isColumnBlock()){
+			//等宽字体中只有一列的字符，宽度就是列数乘以列宽
+			return (float) (overLength * (double) columnWidth);
+		}
+		else if (overLength <= blockLength / 2){
+			return measureText(text, blockStart, blockStart+overLength, getPaint());
+		}
+		return (double) block.getLineBlockWidth(line) - measureText(text, blockStart+overLength, blockEnd, getPaint());
+	}
+	
+	/* 行块从point开始绘制时，获取horiz所在的字符在行块中的位置 */
+	private int offsetForHorizontalInBlock(Editable text, TextBlock block, int line, double point, float horiz, float columnWidth)
+	{
+		int blockStart = block.getLineBlockStart(line);
+		int blockEnd = block.getLineBlockEnd(text.length(), line);
+		if(columnWidth > 0 && block.isColumnBlock()){
+			//等宽字体中只有一列的字符，直接计算horiz所在的列
+			return columnAt(point, horiz, columnWidth, blockEnd - blockStart);
+		}
+		return measureOffsetOpened(text, blockStart, blockEnd, point, horiz, getPaint()) - blockStart;
+	}
+	
+	/**
+	 * 获取很长的行的宽度索引，行跨越的文本块少于LONG_LINE_BLOCKS时返回null，此时逐个遍历文本块就足够快了
+	 * 只保留最近使用的一行的索引，文本改变后丢弃，下次使用时再用每个行块的宽度累加，不需要重新测量
+	 */
+	private LineWidthIndex getLineWidthIndex(int line)
+	{
+		LineWidthIndex index = mLongLine;
+		if(index != null && index.line == line){
+			return index;
+		}
+		int i = getLineAtBlock(line);
+		int j = getLineAtBlock(line + 1);
+		if(j - i + 1 < LONG_LINE_BLOCKS){
+			return null;
+		}
+		index = new LineWidthIndex(line, i, j);
+		mLongLine = index;
+		return index;
+	}
+	
+	/**
+	 * 一行在每个文本块中的行块的宽度和长度的前缀和，用于在很长的行中二分查找指定位置或横坐标所在的文本块
+	 * 前缀和按照与LineBlockSeer相同的顺序累加，因此结果与逐个遍历文本块完全相同
+	 */
+	private final class LineWidthIndex
+	{
+		final int line;       //索引的行
+		final int firstBlock; //行的第一个文本块
+		final int count;      //行跨越的文本块个数
+		final double[] widths; //widths[k]是前k个行块的宽度之和
+		final int[] lengths;   //lengths[k]是前k个行块的长度之和
+
+		LineWidthIndex(int line, int i, int j)
+		{
+			this.line = line;
+			firstBlock = i;
+			count = j - i + 1;
+			widths = new double[count + 1];
+			lengths = new int[count + 1];
+			EditableList eList = (EditableList) getText();
+			for(int k = 0; k < count; ++k)
+			{
+				//第一个文本块从它的最后一个行块开始，之后的文本块都是第一个行块
+				TextBlock block = mBlocks[i + k];
+				int at = k == 0 ? block.lineCount : 0;
+				int length = block.getLineBlockEnd(eList.getBlock(i + k).length(), at) - block.getLineBlockStart(at);
+				widths[k + 1] = widths[k] + block.getLineBlockWidth(at);
+				lengths[k + 1] = lengths[k] + length;
+			}
+		}
+
+		/* 寻找第一个包含lineOff之后的字符的行块，如果lineOff在行的末尾，返回count */
+		int findBlockForOffset(int lineOff)
+		{
+			int low = 0, high = count;
+			while(low < high){
+				int mid = (low + high) >>> 1;
+				if(lengths[mid + 1] > lineOff){
+					high = mid;
+				}else{
+					low = mid + 1;
+				}
+			}
+			return low;
+		}
+
+		/* 寻找第一个右侧超出horiz的行块，如果horiz在行的右侧之外，返回count */
+		int findBlockForHorizontal(float horiz)
+		{
+			int low = 0, high = count;
+			while(low < high){
+				int mid = (low + high) >>> 1;
+				if(widths[mid + 1] > horiz){
+					high = mid;
+				}else{
+					low = mid + 1;
+				}
+			}
+			return low;
+		}
+	}
+	
+	/**
+	 * 与measureOffsetOpened相同，但文本的每个字符都是一列，返回fromx之后第几个字符包含tox
+	 * 先用除法估算，再与逐个累加宽度的结果对齐，以免浮点数的舍入误差导致差一个字符
+	 */
+	private static int columnAt(double fromx, double tox, float columnWidth, int length)
+	{
+		int column = (int) Math.max(0, Math.min(length, Math.floor((tox - fromx) / columnWidth)));
+		while(column > 0 && fromx + column * (double) columnWidth > tox){
+			column--;
+		}
+		while(column < length && fromx + (column + 1) * (double) columnWidth <= tox){
+			column++;
+		}
+		return column;
+	}
+	
 	/* 当进行与文本无关的修改，如修改paint.textSize，则可以调用该方法刷新Layout */
 	public void adjustLayout()
 	{
@@ -435,6 +837,8 @@ public class BlockLayout extends BaseLayout implements BlockListener
 		for(int i = 0; i < mBlockSize; ++i){
 			mBlocks[i].adjustBlock(eList.getBlock(i));
 		}
+		invalidateLineMark(0);
+		mLongLine = null;
 		afterBlocksChanged(0, 0, eList.length());
 	}
 }
@@ -0,0 +1,75 @@
+package com.editor.text;
+
+import java.util.Locale;
+
+/**
+ * EditableList的分块策略，决定了文本块的大小，以及如何维护文本块
+ *
+ * 文本块越小，修改文本时需要移动的字符越少，但文本块越多，查找文本块和维护span的开销越大
+ * 很长的多行文本(例如日志)用大的文本块加载更快，编辑的开销与默认的相近
+ * 但很长的单行文本(例如压缩后的json)每次编辑都要重新测量整个文本块，大的文本块反而更慢
+ * 更小的文本块(256)即使在很小的配置文件中也比默认的慢，因此没有为小文件提供预设
+ * 打开文件时用forFile按文件的类型和大小选择预设的策略，各策略的加载和编辑开销见androidTest中的BlockPolicyBenchmark
+ */
+public final class BlockPolicy
+{
+	public final int maxCount;       //每个文本块的最大容量
+	public final int reserveCount;   //在文本块装满并截取时，会额外预留reserveCount长度的空间
+	public final boolean adaptive;   //是否在删除后合并相邻的小文本块，并根据插入的文本长度调整预留空间
+	public final boolean globalSpans; //是否将所有span存储在全局，而不是文本块中(参见SpanStore)
+	public final int hotBlocks;      //最多有多少个文本块留在堆中，超出时最久没有修改的文本块会转移到堆外(参见ColdTextBlock)，0表示不转移
+
+	/* 默认的策略，与之前固定的文本块大小相同 */
+	public static final BlockPolicy DEFAULT = new BlockPolicy(1088, 64, false, false);
+	/* 适合很大的多行文本，例如日志 */
+	public static final BlockPolicy LARGE = new BlockPolicy(4096, 256, true, true);
+
+	private static final long LARGE_FILE_SIZE = 8 * 1024 * 1024; //达到此大小的文件使用LARGE
+	private static final String[] LARGE_SUFFIXES = {".log", ".csv", ".tsv"};
+
+	/**
+	 * 按文件的类型和大小选择预设的策略，name为null时只按大小选择
+	 * 日志，表格数据和很大的文件使用LARGE，其它文件(例如源代码，配置文件和压缩后的json)使用DEFAULT
+	 */
+	public static BlockPolicy forFile(String name, long size)
+	{
+		String lower = name == null ? "" : name.toLowerCase(Locale.ROOT);
+		if(size >= LARGE_FILE_SIZE || endsWithAny(lower, LARGE_SUFFIXES)){
+			return LARGE;
+		}
+		return DEFAULT;
+	}
+	private static boolean endsWithAny(String name, String[] suffixes)
+	{
+		for(String suffix : suffixes){
+			if(name.endsWith(suffix)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public BlockPolicy(int maxCount, int reserveCount, boolean adaptive, boolean globalSpans){
+		this(maxCount, reserveCount, adaptive, globalSpans, 0);
+	}
+	public BlockPolicy(int maxCount, int reserveCount, boolean adaptive, boolean globalSpans, int hotBlocks)
+	{
+		if(maxCount < 2 || reserveCount < 0 || reserveCount >= maxCount || hotBlocks < 0){
+			throw new IllegalArgumentException("maxCount " + maxCount + ", reserveCount " + reserveCount + ", hotBlocks " + hotBlocks);
+		}
+		this.maxCount = maxCount;
+		this.reserveCount = reserveCount;
+		this.adaptive = adaptive;
+		this.globalSpans = globalSpans;
+		this.hotBlocks = hotBlocks;
+	}
+
+	/* 保留文本块大小，仅修改span的存储方式 */
+	public BlockPolicy withGlobalSpans(boolean globalSpans){
+		return globalSpans == this.globalSpans ? this : new BlockPolicy(maxCount, reserveCount, adaptive, globalSpans, hotBlocks);
+	}
+	/* 保留文本块大小，仅修改最多留在堆中的文本块个数，很大的文本(例如几百MB的日志)可以用它限制占用的堆内存 */
+	public BlockPolicy withHotBlocks(int hotBlocks){
+		return hotBlocks == this.hotBlocks ? this : new BlockPolicy(maxCount, reserveCount, adaptive, globalSpans, hotBlocks);
+	}
+}
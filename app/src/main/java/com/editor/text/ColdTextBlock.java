@@ -0,0 +1,138 @@
+package com.editor.text;
+
+import android.text.*;
+import com.editor.base.array.*;
+import java.nio.CharBuffer;
+
+/**
+ * 冷文本块，文本存储在BlockArena的堆外内存中，或者是映射到内存中的文件的一段(参见MappedText)，它是只读的，并且没有span
+ *
+ * 很长的文本中，远离编辑位置的文本块通常很久都不会修改，EditableList会将没有span的这类文本块转移到堆外
+ * 读取冷文本块直接从堆外内存中拷贝，不需要先转回堆中，修改前EditableList会先用它的文本创建新的文本块(与快照的写时复制相同)
+ * 因此所有修改文本和设置span的方法都会抛出UnsupportedOperationException
+ */
+final class ColdTextBlock implements Editable
+{
+	private final CharSequence mText; //堆外的文本，CharBuffer的位置始终为0，读取时只使用它的副本或绝对位置
+	private final int mStart;         //文本块在mText中的起始位置
+	private final int mLength;
+
+	ColdTextBlock(CharBuffer text){
+		mText = text;
+		mStart = 0;
+		mLength = text.capacity();
+	}
+	ColdTextBlock(MappedText text, int start, int end){
+		mText = text;
+		mStart = start;
+		mLength = end - start;
+	}
+
+	public int length(){
+		return mLength;
+	}
+	public char charAt(int index)
+	{
+		int len = length();
+		if (index < 0) {
+			throw new IndexOutOfBoundsException("charAt: " + index + " < 0");
+		} else if (index >= len) {
+			throw new IndexOutOfBoundsException("charAt: " + index + " >= length " + len);
+		}
+		return mText.charAt(mStart + index);
+	}
+	public void getChars(int start, int end, char[] dest, int destoff)
+	{
+		checkRange("getChars", start, end);
+		if(mText instanceof MappedText){
+			((MappedText) mText).getChars(mStart + start, mStart + end, dest, destoff);
+			return;
+		}
+		//使用副本读取，多个线程可以同时读取同一个冷文本块
+		CharBuffer buffer = ((CharBuffer) mText).duplicate();
+		buffer.position(start);
+		buffer.get(dest, destoff, end - start);
+	}
+	public CharSequence subSequence(int start, int end){
+		checkRange("subSequence", start, end);
+		return new GapTextBlock(this, start, end);
+	}
+	public String toString()
+	{
+		int len = length();
+		char[] buf = new char[len];
+		getChars(0, len, buf, 0);
+		return new String(buf);
+	}
+
+	public Editable replace(int st, int en, CharSequence tb, int tbStart, int tbEnd){
+		throw new UnsupportedOperationException("cold text block is read-only");
+	}
+	public Editable replace(int st, int en, CharSequence text){
+		return replace(st, en, text, 0, text.length());
+	}
+	public Editable insert(int where, CharSequence text, int start, int end){
+		return replace(where, where, text, start, end);
+	}
+	public Editable insert(int where, CharSequence text){
+		return replace(where, where, text, 0, text.length());
+	}
+	public Editable delete(int st, int en){
+		return replace(st, en, "", 0, 0);
+	}
+	public Editable append(CharSequence text){
+		int len = length();
+		return replace(len, len, text, 0, text.length());
+	}
+	public Editable append(CharSequence text, int start, int end){
+		int len = length();
+		return replace(len, len, text, start, end);
+	}
+	public Editable append(char text){
+		return append(String.valueOf(text));
+	}
+	public void clear(){
+		replace(0, length(), "", 0, 0);
+	}
+
+	public void setSpan(Object span, int start, int end, int flags){
+		throw new UnsupportedOperationException("cold text block can not hold spans");
+	}
+	public void removeSpan(Object span){}
+	public void clearSpans(){}
+	public <T> T[] getSpans(int start, int end, Class<T> kind){
+		return kind == null ? (T[]) EmptyArray.OBJECT : EmptyArray.emptyArray(kind);
+	}
+	public int getSpanStart(Object span){
+		return -1;
+	}
+	public int getSpanEnd(Object span){
+		return -1;
+	}
+	public int getSpanFlags(Object span){
+		return 0;
+	}
+	public int nextSpanTransition(int start, int limit, Class kind){
+		return limit;
+	}
+
+	public void setFilters(InputFilter[] filters){
+		throw new UnsupportedOperationException("cold text block is read-only");
+	}
+	public InputFilter[] getFilters(){
+		return NO_FILTERS;
+	}
+
+	private static final InputFilter[] NO_FILTERS = new InputFilter[0];
+
+	private void checkRange(final String operation, int start, int end)
+	{
+		if (end < start) {
+			throw new IndexOutOfBoundsException(operation + " (" + start + " ... " + end + ") has end before start");
+		}
+		int len = length();
+		if (start < 0 || end > len) {
+			throw new IndexOutOfBoundsException(operation + " (" + start + " ... " + end + ") ends beyond length " + len);
+		}
+	}
+}
@@ -3,7 +3,17 @@ package com.editor.text;
 import android.text.*;
 import com.editor.base.array.*;
 import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * 将大的数据分块/分区是一个很棒的思想，
@@ -18,30 +28,50 @@ public class EditableList implements Editable
 	private int mBlockSize; //文本块的个数
 	private int mSpanCount; //span的个数
 	private int mSpanInsertCount; //span插入计数器
+	private int mModCount;  //文本的修改次数，用于检查视图是否有效
+	private int mBlockModCount; //文本或文本块的修改次数，合并文本块时文本不变，但游标缓存的文本块下标会失效
+	private int mSnapshotGen;   //快照代数，每次创建新的快照时增加，文本块的代数与之不同时，它的文本与快照共享
+	private TextSnapshot mLastSnapshot; //上次创建的快照，文本没有修改时可以直接返回它
+	private Object[] mQuerySpans = EmptyArray.OBJECT;   //getSpans跨越多个文本块时，收集span的缓冲区
+	private SpanRange[] mQueryRanges = new SpanRange[0]; //与mQuerySpans对应的SpanRange，排序后不再对应
+	private final Object mQueryLock = new Object();      //并发读取时，多个线程不能同时使用查询缓冲区
+	private ReadWriteLock mLock;    //开启并发访问时的读写锁，为null时不加锁
 
 	//这里将文本打碎成文本块并按正序存储在mBlocks中，mBlockStarts记录了每个文本块的内容在总文本中的起始偏移量，它也是按正序排列，这用于快速查找下标所在的文本块
 	//当插入或删除文本时，我们只要操作局部的少量文本块，其它文本块的内容保持不变(不用操作所有内容)
 	//由于是用文本块存储的，某些span的范围可能会跨越多个文本块，因此我们使用mSpanInBlocks来存储span所在的文本块，并在修改文本时保持同步
 
-	private Editable[] mBlocks;      //文本块列表
+	private Block[] mBlocks;         //文本块列表
 	private int[] mBlockStarts;      //每个文本块在总文本中的起始偏移量
-	private IdentityHashMap<Editable,Integer> mIndexOfBlocks; //文本块处于mBlocks和mBlockStarts中的下标
+	private FenwickTree mBlockLengths; //文本块很多时，用树状数组记录每个文本块的长度，此时由它代替mBlockStarts
 	private IdentityHashMap<Object,SpanRange> mSpanInBlocks;  //span处于哪些文本块中
+	private final SpanStore mSpanStore; //如果不为null，所有span都存储在这里，而不是文本块中
+	private final BlockArena mArena;    //如果不为null，超出BlockPolicy.hotBlocks的文本块会转移到这里
+	private int mHotCount;              //留在堆中的文本块个数
+	private int mUseClock;              //文本块的使用时钟，每次修改文本块时增加，用于找出最久没有修改的文本块
 
-	private int mLowBlockIndexMark; //记录了mIndexOfBlocks应该从哪里开始刷新，避免无效刷新
+	private int mLowBlockIndexMark; //记录了文本块的下标应该从哪里开始刷新，避免无效刷新
 	private int mLowBlockStartMark; //记录了mBlockStarts应该从哪里开始刷新
+	private final BlockPolicy mPolicy; //分块策略
 	private final int MaxCount;     //每个文本块的最大容量
-	private final int ReserveCount; //在文本块装满并截取时，会额外预留ReserveCount长度的空间
+	private int ReserveCount;       //在文本块装满并截取时，会额外预留ReserveCount长度的空间，自适应时会根据插入的文本长度调整
+	private int mInsertAverage;     //自适应时，记录最近插入的文本的平均长度
+	private int mCompactCursor;     //整理碎片时，下次从哪个文本块开始检查
+
+	private int mBatchDepth;        //批量编辑的嵌套层数，大于0时推迟发送事件
+	private int mBatchStart = -1;   //批量编辑期间修改的范围在当前文本中的起始位置，-1表示还没有修改
+	private int mBatchEnd;          //修改的范围在当前文本中的结束位置
+	private int mBatchBefore;       //修改的范围在批量编辑前的长度
 
 	private int mTextWatcherDepth;
 	private TextWatcher mTextWatcher;
 	private BlockListener mBlockListener;
 	private InputFilter[] mFilters = NO_FILTERS;
 
-	private static final int MAX_COUNT = 1088;
-	private static final int RESERVE_COUNT = 64;
+	private static final int BLOCK_TREE_THRESHOLD = 512; //文本块的个数达到此值时，切换到树状数组
+	private static final int PARALLEL_LOAD_THRESHOLD = 256 * 1024; //文本长度达到此值时，才并行创建文本块
+	private static final int COLD_GEN = -1; //冷文本块的代数，它与任何快照代数都不同，因此修改前总会先拷贝
 	private static final InputFilter[] NO_FILTERS = new InputFilter[0];
-	private static final IdentityHashMap[] sMapBuffer = new IdentityHashMap[3];
 	
 	
 	public EditableList(){
@@ -50,7 +80,18 @@ public class EditableList implements Editable
 	public EditableList(CharSequence text){
 		this(text,0,text.length());
 	}
-	public EditableList(CharSequence text, int start, int end)
+	public EditableList(CharSequence text, int start, int end){
+		this(text, start, end, BlockPolicy.DEFAULT);
+	}
+	/**
+	 * 若globalSpans为true，所有span都存储在一个全局的SpanStore中，文本块只存储文本
+	 * 每个span只存储一份，也不用在修改文本时修正span在文本块中的范围，适合span很多并且很长的文本
+	 */
+	public EditableList(CharSequence text, int start, int end, boolean globalSpans){
+		this(text, start, end, BlockPolicy.DEFAULT.withGlobalSpans(globalSpans));
+	}
+	/* 使用指定的分块策略创建文本容器 */
+	public EditableList(CharSequence text, int start, int end, BlockPolicy policy)
 	{
 		int srclen = end - start;
 		if(srclen < 0) throw new StringIndexOutOfBoundsException();
@@ -60,13 +101,16 @@ public class EditableList implements Editable
 		mSpanCount = 0;
 		mSpanInsertCount = 0;
 		
-		mBlocks = EmptyArray.emptyArray(Editable.class);
+		mBlocks = EmptyArray.emptyArray(Block.class);
 		mBlockStarts = EmptyArray.INT;
-		mIndexOfBlocks = new IdentityHashMap<>();
 		mSpanInBlocks = new IdentityHashMap<>();
+		mSpanStore = policy.globalSpans ? new SpanStore() : null;
+		mArena = policy.hotBlocks > 0 ? new BlockArena() : null;
 		
-		MaxCount = MAX_COUNT;
-		ReserveCount = RESERVE_COUNT;
+		mPolicy = policy;
+		MaxCount = policy.maxCount;
+		ReserveCount = policy.reserveCount;
+		mInsertAverage = 0;
 		
 		if(end > start){
 			//第一次插入文本时，可以直接dispatchTextBlock
@@ -85,6 +129,160 @@ public class EditableList implements Editable
 			//协议3: 删除文本时，应移除多余的空文本块
 			addBlocks(0, 1, true);
 		}
+		trimHotBlocks();
+	}
+
+	/**
+	 * 加载很长的文本，在executor中并行地创建文本块，然后按顺序拼接起来
+	 * 每个文本块只从text中拷贝自己的一段，互不影响，因此加载时间随核心数缩短
+	 * 文本较短，带有span，或者executor为null时，与构造函数相同，在当前线程中加载
+	 * 但策略限制了留在堆中的文本块时，即使executor为null，也会直接将之后的文本块存储到堆外，而不是先全部创建在堆中
+	 * 注意加载时text不能被修改
+	 */
+	public static EditableList load(CharSequence text, BlockPolicy policy, ExecutorService executor)
+	{
+		final int len = text.length();
+		if((executor == null && policy.hotBlocks == 0) || text instanceof Spanned || len < PARALLEL_LOAD_THRESHOLD){
+			return new EditableList(text, 0, len, policy);
+		}
+		EditableList list = new EditableList("", 0, 0, policy);
+		list.loadBlocks(text, executor);
+		return list;
+	}
+	/**
+	 * 用text的内容替换现有的空文本块，只能在没有任何文本和监听器时调用，executor为null时在当前线程中依次创建
+	 * 前hotBlocks个文本块创建在堆中，之后的文本块直接存储到堆外
+	 */
+	private void loadBlocks(final CharSequence text, ExecutorService executor)
+	{
+		final int hotCount = mArena == null ? Integer.MAX_VALUE : mPolicy.hotBlocks;
+		final int len = text.length();
+		final int onceCount = this.MaxCount-ReserveCount;
+		final int count = len%onceCount==0 ? len/onceCount : len/onceCount+1;
+		final Editable[] texts = new Editable[count];
+
+		//每个任务负责连续的一段文本块，任务数多于核心数，以免某个任务拖慢整体
+		final int taskCount = Math.min(count, Runtime.getRuntime().availableProcessors() * 4);
+		List<Future<?>> futures = new ArrayList<>(taskCount);
+		for(int t = 0; t < taskCount; ++t)
+		{
+			final int from = (int) ((long) count * t / taskCount);
+			final int to = (int) ((long) count * (t + 1) / taskCount);
+			Runnable task = new Runnable(){
+				public void run()
+				{
+					for(int k = from; k < to; ++k){
+						int start = k * onceCount;
+						int end = Math.min(len, start + onceCount);
+						if(k >= hotCount){
+							//映射的文件已经在堆外，直接引用它的一段，其它文本拷贝到堆外
+							texts[k] = text instanceof MappedText ? new ColdTextBlock((MappedText) text, start, end) : mArena.store(text, start, end);
+							continue;
+						}
+						Editable block = newBlockText();
+						block.replace(0, 0, text, start, end);
+						texts[k] = block;
+					}
+				}
+			};
+			if(executor == null){
+				task.run();
+			}else{
+				futures.add(executor.submit(task));
+			}
+		}
+		waitAll(futures);
+
+		//按顺序拼接文本块，并一次性刷新文本块的下标和起始位置
+		Block[] blocks = new Block[count];
+		for(int k = 0; k < count; ++k){
+			blocks[k] = new Block(texts[k], k, k >= hotCount ? COLD_GEN : mSnapshotGen);
+			blocks[k].use = ++mUseClock;
+		}
+		mHotCount = Math.min(count, hotCount);
+		mBlocks = blocks;
+		mBlockStarts = new int[count];
+		mBlockSize = count;
+		mLength = len;
+		invalidateIndexMark(0);
+		invalidateStartMark(0);
+		refreshInvariants();
+		mModCount++;
+		mBlockModCount++;
+	}
+	/* 等待所有任务完成，任务抛出的异常会在当前线程中重新抛出 */
+	static void waitAll(List<Future<?>> futures)
+	{
+		for(int i = 0; i < futures.size(); ++i)
+		{
+			try{
+				futures.get(i).get();
+			}
+			catch(Exception e){
+				throw new IllegalStateException("parallel task failed", e);
+			}
+		}
+	}
+
+	/**
+	 * 开启或关闭并发访问，开启后读取文本和span的方法持有读锁，修改文本和span的方法持有写锁，
+	 * 后台线程(例如高亮和语法检查)就可以在主线程编辑时直接读取当前文本，而不必先创建快照
+	 * 
+	 * 每个方法只在自身执行期间持有锁，若需要多次读取的结果一致(例如使用游标或视图)，应该在外面持有getLock().readLock()
+	 * 游标和视图每次从文本块读取时也持有读锁，并在锁内检查文本是否已经修改，因此不会读到修改了一半的文本块
+	 * 写锁可以重入，也可以在持有写锁时读取，但持有读锁时不能修改，否则会死锁
+	 * 文本监视器和文本块监听器在持有写锁时调用，它们不能等待其它读取此文本的线程
+	 * span存储在全局时，释放写锁前会整理好SpanStore的索引，因此读取span时也只需要读锁
+	 * 
+	 * 必须在将文本交给其它线程之前调用，关闭时不能有线程持有锁
+	 */
+	public void setConcurrentAccess(boolean enabled)
+	{
+		if(enabled && mSpanStore != null){
+			mSpanStore.restoreInvariants();
+		}
+		mLock = enabled ? new ReentrantReadWriteLock() : null;
+	}
+	/* 获取读写锁，没有开启并发访问时返回null */
+	public ReadWriteLock getLock(){
+		return mLock;
+	}
+	/* 开启了并发访问时获取读锁，返回需要释放的锁，游标和视图也用它读取文本块 */
+	Lock lockRead()
+	{
+		ReadWriteLock lock = mLock;
+		if(lock == null){
+			return null;
+		}
+		Lock readLock = lock.readLock();
+		readLock.lock();
+		return readLock;
+	}
+	/* 开启了并发访问时获取写锁，返回需要释放的锁 */
+	private Lock lockWrite()
+	{
+		ReadWriteLock lock = mLock;
+		if(lock == null){
+			return null;
+		}
+		Lock writeLock = lock.writeLock();
+		writeLock.lock();
+		return writeLock;
+	}
+	static void unlock(Lock lock){
+		if(lock != null){
+			lock.unlock();
+		}
+	}
+	/* 释放写锁，释放前整理SpanStore的排序和索引，之后读取span时不会再修改它，多个线程可以同时读取 */
+	private void unlockWrite(Lock lock)
+	{
+		if(lock != null){
+			if(mSpanStore != null){
+				mSpanStore.restoreInvariants();
+			}
+			lock.unlock();
+		}
 	}
 
 	public void setTextWatcher(TextWatcher watcher){
@@ -97,42 +295,124 @@ public class EditableList implements Editable
 	/* 在指定位置添加一个文本块 */
 	private void addBlock(int i)
 	{
-		Editable block = new SpannableStringBuilder();
+		Block block = new Block(newBlockText(), i, mSnapshotGen);
+		block.use = ++mUseClock;
 		mBlocks = GrowingArrayUtils.insert(mBlocks, mBlockSize, i, block);
 		mBlockStarts = GrowingArrayUtils.insert(mBlockStarts,mBlockSize, i, 0);
-		mIndexOfBlocks.put(block, i);
 		mBlockSize++;
+		mHotCount++;
 	}
 	/* 移除指定位置的文本块 */
 	private void removeBlock(int i)
 	{
-		Editable block = mBlocks[i];
+		Block block = mBlocks[i];
 		//移除文本块的同时移除span与文本块的绑定
-		replaceSpans(i, 0, block.length(), "", 0, 0, true);
+		replaceSpans(i, 0, block.text.length(), "", 0, 0, true);
 		mBlocks = GrowingArrayUtils.remove(mBlocks, mBlockSize, i);
 		mBlockStarts = GrowingArrayUtils.remove(mBlockStarts, mBlockSize, i);
-		mIndexOfBlocks.remove(block);
+		block.index = -1;
 		mBlockSize--;
+		if(block.gen != COLD_GEN){
+			mHotCount--;
+		}
+	}
+	/**
+	 * 创建文本块的文本，span存储在全局时文本块不需要存储span，因此使用更轻量的GapTextBlock
+	 * 否则使用SpannableStringBuilder，它可以正确地处理文本块中的span
+	 */
+	private Editable newBlockText(){
+		return mSpanStore != null ? new GapTextBlock() : new SpannableStringBuilder();
 	}
 	/* 调整指定文本块的内部结构，使得它占用更少的存储空间，并保证存储的内容不变且绑定正确 */
 	private void adjustBlock(int i)
 	{
-		//用原文本创建一个新的文本块然后替换原文本块，并替换span与文本块的绑定
-		Editable oldBlock = mBlocks[i];
-		replaceSpans(i, 0, oldBlock.length(), "", 0, 0, false);
-		mIndexOfBlocks.remove(oldBlock);
-		
-		Editable newBlock = new SpannableStringBuilder();
-		mBlocks[i] = newBlock;
-		mIndexOfBlocks.put(newBlock, i);
-		replaceSpans(i, 0, 0, oldBlock, 0, oldBlock.length(), false);
-		newBlock.replace(0, 0, oldBlock, 0, oldBlock.length());
+		Block block = mBlocks[i];
+		Editable oldText = block.text;
+		if(oldText instanceof GapTextBlock && block.gen == mSnapshotGen){
+			//间隙缓冲区可以直接收缩内部数组，不需要重新创建，但与快照共享的文本不能修改
+			((GapTextBlock)oldText).trimToSize(ReserveCount);
+			return;
+		}
+		copyBlockText(block);
+	}
+	/**
+	 * 用原文本创建一个新的文本替换文本块的内容，span绑定的是文本块本身，因此绑定不会改变
+	 * 如果原文本是冷文本块，这会将文本块转回堆中
+	 */
+	private void copyBlockText(Block block)
+	{
+		Editable oldText = block.text;
+		Editable newText = newBlockText();
+		newText.replace(0, 0, oldText, 0, oldText.length());
+		block.text = newText;
+		if(block.gen == COLD_GEN){
+			mHotCount++;
+		}
+		block.gen = mSnapshotGen;
+	}
+	/* 在文本块中设置span之前，如果它是冷文本块，先转回堆中 */
+	private void warmBlock(Block block)
+	{
+		if(block.gen == COLD_GEN){
+			copyBlockText(block);
+		}
+		block.use = ++mUseClock;
+	}
+
+	/**
+	 * 如果留在堆中的文本块超出了策略的限制，将最久没有修改的文本块转移到堆外，直到不超出限制
+	 * 有span的文本块和空文本块会留在堆中，span存储在文本块中时，它们需要修改文本块
+	 * 每次都要遍历所有文本块，因此超出限制一定数量后才整理一次，一次转移多个文本块
+	 */
+	private void trimHotBlocks()
+	{
+		if(mArena == null || mHotCount <= mPolicy.hotBlocks + Math.max(mPolicy.hotBlocks / 4, 1)){
+			return;
+		}
+		//收集可以转移的文本块的使用时间
+		int[] uses = SpanUtils.obtain(mHotCount);
+		int count = 0;
+		for(int i = 0; i < mBlockSize; ++i)
+		{
+			Block block = mBlocks[i];
+			if(canFreezeBlock(block)){
+				uses[count++] = block.use;
+			}
+		}
+		//转移使用时间最早的need个文本块，只需找到第need小的时间，转移够need个后就停止，以免时间相同时转移过多
+		int need = Math.min(count, mHotCount - mPolicy.hotBlocks);
+		if(need > 0)
+		{
+			Arrays.sort(uses, 0, count);
+			final int threshold = uses[need - 1];
+			for(int i = 0; i < mBlockSize && need > 0; ++i)
+			{
+				Block block = mBlocks[i];
+				if(block.use <= threshold && canFreezeBlock(block)){
+					block.text = mArena.store(block.text, 0, block.text.length());
+					block.gen = COLD_GEN;
+					mHotCount--;
+					need--;
+				}
+			}
+		}
+		SpanUtils.recycle(uses);
+	}
+	/* 文本块是否可以转移到堆外 */
+	private boolean canFreezeBlock(Block block)
+	{
+		if(block.gen == COLD_GEN){
+			return false;
+		}
+		Editable text = block.text;
+		int len = text.length();
+		return len > 0 && (mSpanStore != null || text.nextSpanTransition(-1, len + 1, Object.class) > len);
 	}
 	
 	/**
 	 * 从指定位置开始添加count个文本块，
-	 * 若send为true，刷新mIndexOfBlocks和mBlockStarts，并发送文本块改变的事件
-	 * 若send为false，则刷新mIndexOfBlocks和mBlockStarts是调用者的责任 
+	 * 若send为true，刷新文本块的下标和mBlockStarts，并发送文本块改变的事件
+	 * 若send为false，则刷新文本块的下标和mBlockStarts是调用者的责任 
 	 */
 	private void addBlocks(final int i, final int count, boolean send)
 	{
@@ -149,7 +429,7 @@ public class EditableList implements Editable
 	
 	/**
 	 * 移除指定范围内的文本块，包含下标为i的文本块，但不包含下标为j的文本块
-	 * 若send为false，则刷新mIndexOfBlocks和mBlockStarts是调用者的责任
+	 * 若send为false，则刷新文本块的下标和mBlockStarts是调用者的责任
 	 */
 	private void removeBlocks(final int i, final int j, boolean send)
 	{
@@ -181,11 +461,11 @@ public class EditableList implements Editable
 
 		int i = id;
 		int j = id+count;
-		//添加文本块后必须刷新mIndexOfBlocks，从id开始
+		//添加文本块后必须刷新文本块的下标，从id开始
 		addBlocks(i,count,false);
 		refreshInvariants();
 
-		//计算并填充文本，插入文本仅需mIndexOfBlocks正确，因此可以连续插入
+		//计算并填充文本，插入文本仅需文本块的下标正确，因此可以连续插入
 		for(i=id;i<j;++i)
 		{
 			if(tbEnd-tbStart <= onceCount){
@@ -200,19 +480,20 @@ public class EditableList implements Editable
 		if(send){
 			refreshInvariants();
 			sendBlocksAdded(id,count);
-			sendAfterBlocksTextInserted(id, 0, j-1, mBlocks[j-1].length());
+			sendAfterBlocksTextInserted(id, 0, j-1, mBlocks[j-1].text.length());
 		}
 		return j-1;
 	}
 	
-	int getBlockSize(){
+	/* 文本块的个数 */
+	public int getBlockSize(){
 		return mBlockSize;
 	}
 	Editable getBlock(int id){
-		return mBlocks[id];
+		return mBlocks[id].text;
 	}
 	int getBlockStart(int id){
-		return mBlockStarts[id];
+		return mBlockLengths == null ? mBlockStarts[id] : mBlockLengths.prefix(id);
 	}
 	
 	/**
@@ -222,8 +503,8 @@ public class EditableList implements Editable
 	 */
 	int findBlockBeforeIndex(int index)
 	{
-		int id = ArrayUtils.findRangeContainingIndex(mBlockStarts, mBlockSize, index);
-		if(id > 0 && mBlockStarts[id] == index){
+		int id = findBlockAfterIndex(index);
+		if(id > 0 && getBlockStart(id) == index){
 			return id - 1; //协议生效: 上个文本块长度至少为1，直接走到上个文本块
 		}
 		return id;
@@ -234,7 +515,12 @@ public class EditableList implements Editable
 	 * 如果index处于两文本块边界，那么返回后面的文本块，
 	 * 无论如何，返回的文本块下标都不会超出文本块列表的范围(0 ~ mBlockSize)
 	 */
-	int findBlockAfterIndex(int index){
+	int findBlockAfterIndex(int index)
+	{
+		if(mBlockLengths != null){
+			//文本块很多时，在树状数组中查找，O(log n)
+			return mBlockLengths.findRangeContainingIndex(index);
+		}
 		return ArrayUtils.findRangeContainingIndex(mBlockStarts, mBlockSize, index);
 	}
 
@@ -268,6 +554,15 @@ public class EditableList implements Editable
 	 * 如果插入文本中的span已经存在于自身中，或者是无效的span，则不会加入该span
 	 */
 	public Editable replace(final int start, final int end, CharSequence tb, int tbStart, int tbEnd)
+	{
+		Lock lock = lockWrite();
+		try{
+			return replaceLocked(start, end, tb, tbStart, tbEnd);
+		}finally{
+			unlockWrite(lock);
+		}
+	}
+	private Editable replaceLocked(final int start, final int end, CharSequence tb, int tbStart, int tbEnd)
 	{
 		checkRange("replace", start, end);
 		//过滤文本
@@ -288,20 +583,30 @@ public class EditableList implements Editable
 		}
 		//文本变化前，调用文本监视器的方法，文本修改前触发二次更改无所谓
 		sendBeforeTextChanged(start, before, after);
+		if(mSpanStore != null){
+			//文本块中没有span，只要修正全局span的位置
+			mSpanStore.replace(start, end, after);
+		}
 
 		if(before > 0){
 			//找到start和end所指定的文本块，并将它们偏移到文本块的下标
 			int i = findBlockAfterIndex(start);
 			int j = findBlockBeforeIndex(end);
-			int iStart = start - mBlockStarts[i];
-			int jEnd = end - mBlockStarts[j];
+			int iStart = start - getBlockStart(i);
+			int jEnd = end - getBlockStart(j);
 			//删除范围内的文本和文本块
 		    deleteForBlocks(i, iStart, j, jEnd);
+			if(mPolicy.adaptive){
+				mergeSmallBlocks(start);
+			}
 		}
 		if(after > 0){
+			if(mPolicy.adaptive){
+				adaptReserveCount(after);
+			}
 			//在删除文本后重新查找插入的起始位置，因为删除文本可能导致原文本块移除
 			int i = findBlockAfterIndex(start);
-			int index = start - mBlockStarts[i];
+			int index = start - getBlockStart(i);
 			//然后将文本插入指定位置
 			if(tb instanceof Spanned){
 				String text = TextUtils.substring(tb, tbStart, tbEnd);
@@ -313,13 +618,146 @@ public class EditableList implements Editable
 		}
 
 		mLength += -before + after; 
+		mModCount++;
+		mBlockModCount++;
+		trimHotBlocks();
 		//应该先调用文本块监听器刷新，因为在sendTextChanged中可能触发下次更改
+		//批量编辑时也立即发送，文本块监听器(例如布局)在两次修改之间可能被读取，必须始终与文本一致
 		sendAfterBlocksChanged(start, before, after);
+		if(mBatchDepth > 0){
+			//批量编辑时只记录修改的范围，在结束时一并通知文本监视器
+			addBatchRange(start, before, after);
+			return this;
+		}
 		sendTextChanged(start, before, after);
 		sendAfterTextChanged();
 		return this;
 	}
 	
+	/**
+	 * 开始批量编辑，直到最外层的endBatchEdit之前，所有修改只会记录修改的范围，
+	 * 而不会发送onTextChanged和afterTextChanged，结束时才将合并的范围一次性发送
+	 * 文本块的事件(包括afterBlocksChanged)和beforeTextChanged仍然在每次修改时立即发送，
+	 * 因为它们需要修改前的文本，或者布局在批量编辑期间也可能被读取
+	 * 批量编辑可以嵌套，必须与endBatchEdit成对调用
+	 */
+	public void beginBatchEdit(){
+		Lock lock = lockWrite();
+		++mBatchDepth;
+		unlockWrite(lock);
+	}
+	/* 结束批量编辑，若是最外层的批量编辑，发送合并后的事件 */
+	public void endBatchEdit()
+	{
+		Lock lock = lockWrite();
+		try{
+			endBatchEditLocked();
+		}finally{
+			unlockWrite(lock);
+		}
+	}
+	private void endBatchEditLocked()
+	{
+		if(mBatchDepth == 0 || --mBatchDepth > 0 || mBatchStart < 0){
+			return;
+		}
+		final int start = mBatchStart;
+		final int before = mBatchBefore;
+		final int after = mBatchEnd - mBatchStart;
+		mBatchStart = -1;
+		sendTextChanged(start, before, after);
+		sendAfterTextChanged();
+	}
+	public boolean isInBatchEdit(){
+		return mBatchDepth > 0;
+	}
+	
+	/**
+	 * 将每个starts[i]~ends[i]的范围替换为replacements[i]，范围必须升序排列并且不能重叠
+	 * 所有替换在一次批量编辑中完成，只发送一次合并后的事件，返回替换的个数
+	 * 从后往前替换，前面的范围不会因为之后的替换而偏移，因此不用修正范围，
+	 * 修改局部的文本块和span也只会影响之后的文本，范围外的span保持不变
+	 */
+	public int replaceAll(int[] starts, int[] ends, CharSequence[] replacements, int count)
+	{
+		Lock lock = lockWrite();
+		try{
+			return replaceAllLocked(starts, ends, replacements, count);
+		}finally{
+			unlockWrite(lock);
+		}
+	}
+	private int replaceAllLocked(int[] starts, int[] ends, CharSequence[] replacements, int count)
+	{
+		//先检查所有范围，避免替换到一半时抛出异常
+		int last = 0;
+		for(int i = 0; i < count; ++i)
+		{
+			if(starts[i] < last){
+				throw new IllegalArgumentException("replaceAll: range " + region(starts[i], ends[i]) + " overlaps or is before " + last);
+			}
+			checkRange("replaceAll", starts[i], ends[i]);
+			last = ends[i];
+		}
+		beginBatchEdit();
+		for(int i = count - 1; i >= 0; --i){
+			CharSequence text = replacements[i] == null ? "" : replacements[i];
+			replace(starts[i], ends[i], text, 0, text.length());
+		}
+		endBatchEdit();
+		return count;
+	}
+	public int replaceAll(int[] starts, int[] ends, CharSequence[] replacements){
+		return replaceAll(starts, ends, replacements, starts.length);
+	}
+	/**
+	 * 将所有匹配pattern的文本替换为replacement，replacement按原样插入，不会展开其中的$g
+	 * 直接在文本的视图上匹配，不会拷贝整个文本，返回替换的个数
+	 */
+	public int replaceAll(Pattern pattern, CharSequence replacement)
+	{
+		//匹配和替换之间不能有其它线程修改文本
+		Lock lock = lockWrite();
+		try{
+			return replaceAllLocked(pattern, replacement);
+		}finally{
+			unlockWrite(lock);
+		}
+	}
+	private int replaceAllLocked(Pattern pattern, CharSequence replacement)
+	{
+		int[] starts = EmptyArray.INT;
+		int[] ends = EmptyArray.INT;
+		int count = 0;
+		Matcher matcher = pattern.matcher(view());
+		while(matcher.find()){
+			starts = GrowingArrayUtils.append(starts, count, matcher.start());
+			ends = GrowingArrayUtils.append(ends, count, matcher.end());
+			count++;
+		}
+		CharSequence[] replacements = new CharSequence[count];
+		Arrays.fill(replacements, replacement);
+		return replaceAllLocked(starts, ends, replacements, count);
+	}
+	/**
+	 * 将一次修改合并到批量编辑的范围中，start，before，after都是相对于修改前的当前文本
+	 * 合并后的范围是两者的并集，范围外的文本没有改变，因此并集在编辑前的长度可以由扩展的部分算出
+	 */
+	private void addBatchRange(int start, int before, int after)
+	{
+		if(mBatchStart < 0){
+			mBatchStart = start;
+			mBatchEnd = start + after;
+			mBatchBefore = before;
+			return;
+		}
+		int s = Math.min(mBatchStart, start);
+		int e = Math.max(mBatchEnd, start + before);
+		mBatchBefore += (e - s) - (mBatchEnd - mBatchStart);
+		mBatchStart = s;
+		mBatchEnd = e - before + after;
+	}
+	
 	/**
 	 * 从指定文本块的指定位置插入一段文本，并重新分配文本块的文本，使每个文本块的大小不超出MaxCount 
 	 * 在第一步的插入后，此时文本整体就已经是正确的了，之后就是文本的重新分配
@@ -339,8 +777,9 @@ public class EditableList implements Editable
 	{
 		//先插入文本，让在此范围内的span进行扩展和修正
 		//注意必须立即发送事件，因为插入的位置不是末尾时，不连续的范围将错误传递
-		final Editable dstBlock = mBlocks[i];
 		repalceWithSpans(i, index, index, tb, tbStart, tbEnd, true, false);
+		//文本块与快照共享时，插入前会替换为新的文本，因此插入后再获取
+		final Editable dstBlock = mBlocks[i].text;
 
 		//再检查文本块的内容是否超出MaxCount
 		final int newLen = dstBlock.length();	
@@ -353,12 +792,12 @@ public class EditableList implements Editable
 			repalceWithSpans(i, keepLen, newLen, "", 0, 0, true, false);
 
 			//将超出的文本分发到之后的文本块中，并保证它们的长度不超出MaxCount
-			if(i+1 < mBlockSize && mBlocks[i+1].length()+overLen <= this.MaxCount){
+			if(i+1 < mBlockSize && mBlocks[i+1].text.length()+overLen <= this.MaxCount){
 				//如果有下个文本块并且它可以容纳超出的文本，将超出的文本插入下个文本块开头
 				//插入前需要获取重复的span，插入后再次修正范围
-				Object[] spans = checkRepeatSpans(mBlocks[i+1], subText, 0, overLen);
+				Object[] spans = checkRepeatSpans(mBlocks[i+1].text, subText, 0, overLen);
 				repalceWithSpans(i+1, 0, 0, subText, 0, overLen, true, false);
-				fixRepeatSpansRange(mBlocks[i+1], subText, spans, 0);
+				fixRepeatSpansRange(mBlocks[i+1].text, subText, spans, 0);
 			}
 			else{
 				//如果下个文本块无法容纳超出的文本，必须分发，分发时不需要修正不连续的span，也不需要修正重复span
@@ -392,7 +831,7 @@ public class EditableList implements Editable
 		if(i == j)
 		{
 			//只要删除一个文本块中的内容
-			if(start==0 && end==mBlocks[i].length()){
+			if(start==0 && end==mBlocks[i].text.length()){
 				//全部文本删除，文本块被移除
 				removeBlocks(i,i+1,true);
 			}else{	
@@ -404,16 +843,16 @@ public class EditableList implements Editable
 		else
 		{
 			//要删除多个文本块的内容
-			//删除文本或文本块时，mIndexOfBlocks和mBlockStarts均可不正确
+			//删除文本或文本块时，文本块的下标和mBlockStarts均可不正确
 			//因此可以连续删除，仅需在最后刷新数据
 			int removedBlockStartIndex = i, removedBlockEndIndex = j+1;
 
 			if(start > 0){
 				//如果起始块不会移除，就删除范围内的文本，但移除文本块起始下标加1
-			    repalceWithSpans(i,start,mBlocks[i].length(),"",0,0,false,true);
+			    repalceWithSpans(i,start,mBlocks[i].text.length(),"",0,0,false,true);
 				removedBlockStartIndex++;
 			}
-			if(end < mBlocks[j].length()){
+			if(end < mBlocks[j].text.length()){
 				//如果末尾块不会移除，就删除范围内的文本，但移除文本块末尾下标减1
 			    repalceWithSpans(j,0,end,"",0,0,false,true);
 				removedBlockEndIndex--;
@@ -428,6 +867,120 @@ public class EditableList implements Editable
 		}
 	}
 
+	/**
+	 * 自适应时，删除文本后尝试将index所在的文本块与相邻的小文本块合并，以免留下大量很小的文本块
+	 * 只有合并后的长度不超过MaxCount的一半时才合并，这样合并后的文本块还需要插入很多文本才会再次截取
+	 */
+	private void mergeSmallBlocks(int index)
+	{
+		final int limit = this.MaxCount / 2;
+		int i = findBlockBeforeIndex(index);
+		//先尝试与后一个文本块合并，再尝试与前一个文本块合并，合并后i处的文本块就是合并后的文本块
+		if(i+1 < mBlockSize && mBlocks[i].text.length() + mBlocks[i+1].text.length() <= limit){
+			mergeBlocks(i);
+		}
+		if(i > 0 && i < mBlockSize && mBlocks[i-1].text.length() + mBlocks[i].text.length() <= limit){
+			mergeBlocks(i-1);
+		}
+	}
+
+	/**
+	 * 将下标为i的文本块的内容移到下个文本块的开头，然后移除该文本块
+	 * 这和insertForBlocks中将超出的文本插入下个文本块开头是一样的，只是这次截取了整个文本块
+	 */
+	private void mergeBlocks(final int i)
+	{
+		final int len = mBlocks[i].text.length();
+		Spanned subText = (Spanned) mBlocks[i].text.subSequence(0, len);
+		repalceWithSpans(i, 0, len, "", 0, 0, true, false);
+
+		//插入前需要获取重复的span，插入后再次修正范围
+		Object[] spans = checkRepeatSpans(mBlocks[i+1].text, subText, 0, len);
+		repalceWithSpans(i+1, 0, 0, subText, 0, len, true, false);
+		fixRepeatSpansRange(mBlocks[i+1].text, subText, spans, 0);
+		//现在文本块是空的，直接移除
+		removeBlocks(i, i+1, true);
+	}
+
+	/**
+	 * 整理文本块的碎片，将相邻的小文本块合并，从上次停下的地方开始，最多检查budget个文本块
+	 * 这可以在空闲时反复调用，直到返回0，返回本次合并的文本块个数
+	 * span的绑定和文本块事件都与删除文本时合并文本块相同，文本本身不会改变，因此不会通知TextWatcher
+	 * 修改文本时不会自动整理，因为判断碎片需要遍历所有文本块，编辑器在空闲时分批调用它(参见Editor.CompactTask)
+	 */
+	public int compactBlocks(int budget)
+	{
+		Lock lock = lockWrite();
+		try{
+			return compactBlocksLocked(budget);
+		}finally{
+			unlockWrite(lock);
+		}
+	}
+	private int compactBlocksLocked(int budget)
+	{
+		final int small = this.MaxCount / 4;
+		final int limit = this.MaxCount - ReserveCount;
+		int merged = 0;
+		int first = -1;
+		int i = mCompactCursor < mBlockSize ? mCompactCursor : 0;
+		for(; budget > 0 && i+1 < mBlockSize; --budget)
+		{
+			int len = mBlocks[i].text.length();
+			int nextLen = mBlocks[i+1].text.length();
+			if((len < small || nextLen < small) && len + nextLen <= limit){
+				//合并后下标为i的文本块变为合并后的文本块，它可能还可以与下个文本块合并，因此不向后走
+				mergeBlocks(i);
+				first = first < 0 ? i : first;
+				++merged;
+			}else{
+				++i;
+			}
+		}
+		//走到末尾后，下次从头开始
+		mCompactCursor = i+1 < mBlockSize ? i : 0;
+		if(merged > 0){
+			mBlockModCount++;
+			//文本没有改变，但文本块的起始行数需要刷新
+			sendAfterBlocksChanged(getBlockStart(first), 0, 0);
+		}
+		return merged;
+	}
+
+	/* 获取文本块的碎片统计，O(n) */
+	public BlockStats getBlockStats()
+	{
+		Lock lock = lockRead();
+		try{
+			return getBlockStatsLocked();
+		}finally{
+			unlock(lock);
+		}
+	}
+	private BlockStats getBlockStatsLocked()
+	{
+		final int small = this.MaxCount / 4;
+		int smallCount = 0;
+		for(int i = 0; i < mBlockSize; ++i){
+			if(mBlocks[i].text.length() < small){
+				++smallCount;
+			}
+		}
+		return new BlockStats(mBlockSize, smallCount, mLength, this.MaxCount);
+	}
+
+	/**
+	 * 自适应时，根据最近插入的文本的平均长度调整预留空间，
+	 * 经常插入较长的文本时，截取文本块时预留更多的空间，以免很快又需要截取
+	 * 预留空间不会少于策略中的reserveCount，也不会超过MaxCount的四分之一
+	 */
+	private void adaptReserveCount(int after)
+	{
+		after = Math.min(after, this.MaxCount);
+		mInsertAverage = (mInsertAverage * 7 + after) / 8;
+		ReserveCount = Math.max(mPolicy.reserveCount, Math.min(mInsertAverage * 4, this.MaxCount / 4));
+	}
+
 	/**
 	 * 替换指定文本块的文本及span与其的绑定，若send为false，则刷新mBlockStarts是调用者的责任
 	 * 替换文本的同时自动修正还衔接在之前或之后文本块的span在该文本块的范围
@@ -436,7 +989,13 @@ public class EditableList implements Editable
 	{
 		final int before = end-start;
 		final int after = tbEnd-tbStart;
-		final Editable dstBlock = mBlocks[i];
+		final Block block = mBlocks[i];
+		if(block.gen != mSnapshotGen){
+			//文本与快照共享或者是冷文本块，修改前先拷贝一份(写时复制)
+			copyBlockText(block);
+		}
+		block.use = ++mUseClock;
+		final Editable dstBlock = block.text;
 		if(send && before > 0){
 			sendBeforeBlocksTextDeleted(i, start, i, end);
 		}
@@ -453,10 +1012,10 @@ public class EditableList implements Editable
 		//需要在删除文本前，替换span的绑定。删除文本不需要修正span
 		replaceSpans(i,start,end,tb,tbStart,tbEnd,spanIsRemoved);
 		dstBlock.replace(start,end,tb,tbStart,tbEnd);
-		invalidateStartMark(i);
+		invalidateBlockLength(i);
 		//需要在插入后，修正端点处的span
 		if(after > 0){
-			fixDiscontinuousSpans(dstBlock,spans);
+			fixDiscontinuousSpans(block,spans);
 		}
 
 		if(send){
@@ -477,8 +1036,9 @@ public class EditableList implements Editable
 	private void replaceSpans(final int i, final int start, final int end, CharSequence tb, int tbStart, int tbEnd, boolean spanIsRemoved)
 	{
 		//先移除指定文本块start~end范围内的span与block的绑定
-		//纯删除时，mIndexOfBlocks和mBlockStarts均可不正确
-		final Editable dstBlock = mBlocks[i];
+		//纯删除时，文本块的下标和mBlockStarts均可不正确
+		final Block block = mBlocks[i];
+		final Editable dstBlock = block.text;
 		if(end > start)
 		{
 			final boolean blockIsRemoved = start == 0 && end == dstBlock.length();
@@ -496,14 +1056,14 @@ public class EditableList implements Editable
 						mSpanInBlocks.remove(span);
 						mSpanCount--;
 					}else{
-						spanRange.remove(i, dstBlock);
+						spanRange.remove(i, block);
 					}
 				}	
 			}
 		}
 
 		//如果要替换的文本是Spanned，范围内的span需要与block建立新的绑定
-		//插入时，mIndexOfBlocks必须是正确的，插入文本中的span必须都是有效的
+		//插入时，文本块的下标必须是正确的，插入文本中的span必须都是有效的
 		if(tbEnd > tbStart && tb instanceof Spanned)
 		{
 			Spanned sp = (Spanned) tb;
@@ -519,7 +1079,7 @@ public class EditableList implements Editable
 					mSpanCount++;
 				}
 				//将block加入spanRange中，并不加入重复的block
-				spanRange.add(i, dstBlock);
+				spanRange.add(i, block);
 			}
 		}
 	}
@@ -527,15 +1087,33 @@ public class EditableList implements Editable
 	/* 在文本或文本块改变后，刷新所有的数据 */
 	private void refreshInvariants()
 	{
-		//仅文本修改时，只要刷新mBlockStarts，而不需要刷新mIndexOfBlocks
-		if(mLowBlockStartMark == 0){ //协议生效，最少也有一个文本块
-			mBlockStarts[mLowBlockStartMark++] = 0;
+		//文本块很多时，切换到树状数组，文本块变少后再切换回mBlockStarts，两次切换之间留有余地以免来回切换
+		if(mBlockLengths == null && mBlockSize >= BLOCK_TREE_THRESHOLD){
+			mBlockLengths = new FenwickTree();
+			invalidateStartMark(0);
+		}
+		else if(mBlockLengths != null && mBlockSize < BLOCK_TREE_THRESHOLD / 2){
+			mBlockLengths = null;
+			invalidateStartMark(0);
 		}
-		for(int i=mLowBlockStartMark; i<mBlockSize; ++i){
-			mBlockStarts[i] = mBlockStarts[i-1] + mBlocks[i-1].length();
+		
+		if(mBlockLengths != null){
+			//使用树状数组时，仅文本修改已经在invalidateBlockLength中修改了长度，只有添加移除文本块时需要重建
+			if(mLowBlockStartMark != Integer.MAX_VALUE){
+				rebuildBlockLengths();
+			}
+		}
+		else{
+			//仅文本修改时，只要刷新mBlockStarts，而不需要刷新文本块的下标
+			if(mLowBlockStartMark == 0){ //协议生效，最少也有一个文本块
+				mBlockStarts[mLowBlockStartMark++] = 0;
+			}
+			for(int i=mLowBlockStartMark; i<mBlockSize; ++i){
+				mBlockStarts[i] = mBlockStarts[i-1] + mBlocks[i-1].text.length();
+			}
 		}
 		for(int i=mLowBlockIndexMark; i<mBlockSize; ++i){
-			mIndexOfBlocks.put(mBlocks[i], i);
+			mBlocks[i].index = i;
 		}
 		mLowBlockStartMark = Integer.MAX_VALUE;
 		mLowBlockIndexMark = Integer.MAX_VALUE;
@@ -548,6 +1126,27 @@ public class EditableList implements Editable
 	private void invalidateStartMark(int i){
 		mLowBlockStartMark = i<=mLowBlockStartMark ? i:mLowBlockStartMark;
 	}
+	/* 在修改文本块的文本后，刷新该文本块的长度 */
+	private void invalidateBlockLength(int i)
+	{
+		if(mBlockLengths != null && mLowBlockStartMark == Integer.MAX_VALUE){
+			//使用树状数组并且文本块没有添加移除时，直接修改树中该文本块的长度，O(log n)
+			mBlockLengths.set(i, mBlocks[i].text.length());
+		}else{
+			//否则等待之后在refreshInvariants中一并刷新
+			invalidateStartMark(i);
+		}
+	}
+	/* 用每个文本块的长度重建树状数组 */
+	private void rebuildBlockLengths()
+	{
+		int[] lengths = SpanUtils.obtain(mBlockSize);
+		for(int i = 0; i < mBlockSize; ++i){
+			lengths[i] = mBlocks[i].text.length();
+		}
+		mBlockLengths.setValues(lengths, mBlockSize);
+		SpanUtils.recycle(lengths);
+	}
 
 	/**
 	 * 在文本块修改后，修正不连续的span在该文本块中的范围，使它在多个文本块中的范围是连续的，span样本通常是取自该文本块的两端
@@ -556,8 +1155,9 @@ public class EditableList implements Editable
 	 * 当在某个文本块开头插入文本并且span还衔接在之前的文本块: [------][__--]，修正为: [------][----]
 	 * 并且这些情况只可能在文本块的边界处出现，因为在边界处插入文本不被包含在span的范围内，而span又衔接至上个或下个文本块
 	 */
-	private void fixDiscontinuousSpans(Editable dstBlock, Object[] spans)
+	private void fixDiscontinuousSpans(Block block, Object[] spans)
 	{
+		final Editable dstBlock = block.text;
 		final int len = dstBlock.length();
 		for(int k = 0; k < spans.length; ++k)
 		{
@@ -570,13 +1170,13 @@ public class EditableList implements Editable
 				int start = dstBlock.getSpanStart(span);
 				int end = dstBlock.getSpanEnd(span);
 				int flags = dstBlock.getSpanFlags(span);
-				if(spanRange.headBlock() == dstBlock){
+				if(spanRange.headBlock() == block){
 					//span应衔接在起始块末尾
 					if(end < len){
 						dstBlock.setSpan(span,start,len,flags);
 					}
 				}
-				else if(spanRange.tailBlock() == dstBlock){
+				else if(spanRange.tailBlock() == block){
 					//span应衔接在末尾块起始
 					if(start > 0){
 						dstBlock.setSpan(span,0,end,flags);
@@ -636,18 +1236,40 @@ public class EditableList implements Editable
 		return spanStart >= delstart && spanEnd <= delend;
 	}
 	
-	public void clear(){
-		replace(0, length(), "", 0, 0);
-		mSpanInsertCount = 0;
+	public void clear()
+	{
+		Lock lock = lockWrite();
+		try{
+			replaceLocked(0, length(), "", 0, 0);
+			mSpanInsertCount = 0;
+			if(mSpanStore != null){
+				mSpanStore.clear();
+			}
+		}finally{
+			unlockWrite(lock);
+		}
 	}
 	public void clearSpans()
 	{
+		Lock lock = lockWrite();
+		try{
+			clearSpansLocked();
+		}finally{
+			unlockWrite(lock);
+		}
+	}
+	private void clearSpansLocked()
+	{
+		if(mSpanStore != null){
+			mSpanStore.clear();
+			return;
+		}
 		if(mSpanCount == 0){
 			return;
 		}
 		//移除所有文本块的所有span，并移除所有绑定
 		for(int i=0; i<mBlockSize; ++i){
-			mBlocks[i].clearSpans();
+			mBlocks[i].text.clearSpans();
 		}
 		mSpanInBlocks.clear();
 		mSpanCount = 0;
@@ -655,12 +1277,25 @@ public class EditableList implements Editable
 	}
 	
 	public void setSpan(final Object span, int start, int end, final int flags)
+	{
+		Lock lock = lockWrite();
+		try{
+			setSpanLocked(span, start, end, flags);
+		}finally{
+			unlockWrite(lock);
+		}
+	}
+	private void setSpanLocked(final Object span, int start, int end, final int flags)
 	{
 		checkRange("setSpan",start,end);
 		if(isInvalidSpan(span, start, end, flags)){
 			//从该类创建无效跨度时，自动忽略无效跨度
 			return;
 		}
+		if(mSpanStore != null){
+			mSpanStore.setSpan(span, start, end, flags);
+			return;
+		}
 
 		SpanRange tempRange = mSpanInBlocks.get(span);
 		if(tempRange != null){
@@ -681,16 +1316,131 @@ public class EditableList implements Editable
 			@Override
 			public void rangeTotal(int id, int start, int end)
 			{
-				Editable block = mBlocks[id];
-				block.setSpan(span, start, end, flags);
+				Block block = mBlocks[id];
+				warmBlock(block);
+				block.text.setSpan(span, start, end, flags);
 				spanRange.add(block);
 			}
 		};
 		runRangeTotal(start, end, total);
+		trimHotBlocks();
+	}
+
+	/**
+	 * 批量设置span，效果与按数组顺序逐个调用setSpan相同(插入顺序按数组顺序分配，同一个span出现多次时以最后一次为准)
+	 * 但是会先按起始位置排序，然后只从前往后遍历一次文本块，不需要为每个span查找文本块和创建RangeTotal
+	 * 所有位置会在修改之前全部检查，若有位置越界则抛出异常，并且不会设置任何span
+	 */
+	public void setSpans(Object[] spans, int[] starts, int[] ends, int[] flags){
+		setSpans(spans, starts, ends, flags, spans.length);
+	}
+	/* 批量设置数组中前count个span */
+	public void setSpans(Object[] spans, int[] starts, int[] ends, int[] flags, final int count)
+	{
+		Lock lock = lockWrite();
+		try{
+			setSpansLocked(spans, starts, ends, flags, count);
+		}finally{
+			unlockWrite(lock);
+		}
+	}
+	private void setSpansLocked(Object[] spans, int[] starts, int[] ends, int[] flags, final int count)
+	{
+		for(int i = 0; i < count; ++i){
+			checkRange("setSpans", starts[i], ends[i]);
+		}
+		if(mSpanStore != null){
+			//全局span本身就是在最后需要时才排序，直接逐个添加即可
+			for(int i = 0; i < count; ++i){
+				if(!isInvalidSpan(spans[i], starts[i], ends[i], flags[i])){
+					mSpanStore.setSpan(spans[i], starts[i], ends[i], flags[i]);
+				}
+			}
+			return;
+		}
+
+		//先按数组顺序确定每个span的范围和插入顺序，并记录有效span的起始位置和下标
+		//起始位置存储在高32位，下标存储在低32位，这样排序后即按起始位置排列
+		final SpanRange[] ranges = new SpanRange[count];
+		final long[] keys = new long[count];
+		int validCount = 0;
+		for(int i = 0; i < count; ++i)
+		{
+			Object span = spans[i];
+			if(isInvalidSpan(span, starts[i], ends[i], flags[i])){
+				continue;
+			}
+			SpanRange spanRange = mSpanInBlocks.get(span);
+			if(spanRange != null){
+				spanRange.removeSpan(span);
+				if(spanRange.batchIndex >= 0 && ranges[spanRange.batchIndex] == spanRange){
+					//span在本次设置中已经出现过，之前的设置作废
+					ranges[spanRange.batchIndex] = null;
+				}
+			}
+			else{
+				spanRange = new SpanRange(mSpanInsertCount++);
+				mSpanInBlocks.put(span, spanRange);
+				mSpanCount++;
+			}
+			spanRange.batchIndex = i;
+			ranges[i] = spanRange;
+			keys[validCount++] = ((long) starts[i] << 32) | i;
+		}
+		Arrays.sort(keys, 0, validCount);
+
+		//起始位置递增，因此起始文本块只会向后走，顺便累加文本块的起始位置，不需要查找
+		int id = 0, idStart = 0;
+		for(int k = 0; k < validCount; ++k)
+		{
+			final int i = (int) keys[k];
+			final SpanRange spanRange = ranges[i];
+			if(spanRange == null){
+				continue;
+			}
+			spanRange.batchIndex = -1;
+			final Object span = spans[i];
+			final int start = starts[i], end = ends[i], flag = flags[i];
+
+			//如果start处于两文本块边界，那么从后面的文本块开始
+			while(id + 1 < mBlockSize && idStart + mBlocks[id].text.length() <= start){
+				idStart += mBlocks[id].text.length();
+				id++;
+			}
+			//从起始文本块开始逐块设置span，如果end处于两文本块边界，那么在前面的文本块结束
+			int j = id, jStart = idStart;
+			while(true)
+			{
+				Block block = mBlocks[j];
+				int len = block.text.length();
+				warmBlock(block);
+				block.text.setSpan(span, Math.max(start - jStart, 0), Math.min(end - jStart, len), flag);
+				spanRange.add(block);
+				if(end <= jStart + len || j + 1 >= mBlockSize){
+					break;
+				}
+				jStart += len;
+				j++;
+			}
+		}
+		trimHotBlocks();
 	}
 
 	public void removeSpan(Object span)
 	{
+		Lock lock = lockWrite();
+		try{
+			removeSpanLocked(span);
+		}finally{
+			unlockWrite(lock);
+		}
+	}
+	private void removeSpanLocked(Object span)
+	{
+		if(mSpanStore != null){
+			mSpanStore.removeSpan(span);
+			return;
+		}
 		//移除span与blocks的绑定，并将span从这些文本块中移除
 	    SpanRange spanRange = mSpanInBlocks.remove(span);
 		if(spanRange != null){
@@ -701,46 +1451,89 @@ public class EditableList implements Editable
 	
 	public int getSpanStart(Object span)
 	{
+		Lock lock = lockRead();
+		try{
+			return getSpanStartLocked(span);
+		}finally{
+			unlock(lock);
+		}
+	}
+	private int getSpanStartLocked(Object span)
+	{
+		if(mSpanStore != null){
+			return mSpanStore.getSpanStart(span);
+		}
 		//获取span所绑定的第一个文本块，然后获取文本块的起始位置，并附加span在此文本块的起始位置
 		SpanRange spanRange = mSpanInBlocks.get(span);
 		if(spanRange == null){
 			return -1;
 		}
-		Editable block = spanRange.headBlock();
-		int id = mIndexOfBlocks.get(block);
-		int start = block.getSpanStart(span);
-		return mBlockStarts[id] + start;
+		Block block = spanRange.headBlock();
+		int start = block.text.getSpanStart(span);
+		return getBlockStart(block.index) + start;
 	}
 	
 	public int getSpanEnd(Object span)
 	{
+		Lock lock = lockRead();
+		try{
+			return getSpanEndLocked(span);
+		}finally{
+			unlock(lock);
+		}
+	}
+	private int getSpanEndLocked(Object span)
+	{
+		if(mSpanStore != null){
+			return mSpanStore.getSpanEnd(span);
+		}
 		//获取span所绑定的最后一个文本块，然后获取文本块的起始位置，并附加span在此文本块的末尾位置
 		SpanRange spanRange = mSpanInBlocks.get(span);
 		if(spanRange == null){
 			return -1;
 		}
-		Editable block = spanRange.tailBlock();
-		int id = mIndexOfBlocks.get(block);
-		int end = block.getSpanEnd(span);
-		return mBlockStarts[id] + end;
+		Block block = spanRange.tailBlock();
+		int end = block.text.getSpanEnd(span);
+		return getBlockStart(block.index) + end;
 	}
 	
 	public int getSpanFlags(Object span)
 	{
+		Lock lock = lockRead();
+		try{
+			return getSpanFlagsLocked(span);
+		}finally{
+			unlock(lock);
+		}
+	}
+	private int getSpanFlagsLocked(Object span)
+	{
+		if(mSpanStore != null){
+			return mSpanStore.getSpanFlags(span);
+		}
 		//获取span所绑定的任意一个文本块即可，然后获取span在文本块中的flags
 		SpanRange spanRange = mSpanInBlocks.get(span);
 		if(spanRange == null){
 			return 0;
 		}
-		return spanRange.headBlock().getSpanFlags(span);
+		return spanRange.headBlock().text.getSpanFlags(span);
 	}
 	
 	public int getSpanCount(){
-		return mSpanCount;
+		return mSpanStore != null ? mSpanStore.getSpanCount() : mSpanCount;
 	}
 	
-	public <T extends Object> T[] getSpans(int start, int end, Class<T> kind){
-		return getSpans(start,end,kind,true);
+	public <T extends Object> T[] getSpans(int start, int end, Class<T> kind)
+	{
+		Lock lock = lockRead();
+		try{
+			if(mSpanStore != null){
+				return mSpanStore.getSpans(start, end, kind);
+			}
+			return getSpans(start,end,kind,true);
+		}finally{
+			unlock(lock);
+		}
 	}
 	/* 获取与指定范围重叠的指定类型的span，sort表示是否按优先级和插入顺序排序 */
 	private <T extends Object> T[] getSpans(int start, int end, final Class<T> kind, boolean sort)
@@ -766,12 +1559,12 @@ public class EditableList implements Editable
 			i = findBlockAfterIndex(start);
 			j = findBlockBeforeIndex(end);
 		}
-		start -= mBlockStarts[i];
-		end -= mBlockStarts[j];
+		start -= getBlockStart(i);
+		end -= getBlockStart(j);
 
 		if(i == j){
 			//如果获取的span仅存于单个文本块中，不必再创建map
-			T[] spans = mBlocks[i].getSpans(start, end, kind);
+			T[] spans = mBlocks[i].text.getSpans(start, end, kind);
 			if(sort){
 				//span在文本块中的顺序和span在总文本中的顺序不同，因此需要重新排序
 				sortSpans(spans);
@@ -779,37 +1572,121 @@ public class EditableList implements Editable
 			return spans;
 		}
 
-		//收集范围内所有文本块的span，并不包含重复的span
-		final IdentityHashMap<T, Object> spanMap = obtainMap();
-		RangeTotal total = new RangeTotal()
+		synchronized(mQueryLock)
 		{
-			@Override
-			public void rangeTotal(int id, int start, int end)
+			final int count = collectSpans(i, start, j, end, kind, sort);
+			if(count == 0){
+				return EmptyArray.emptyArray(kind);
+			}
+			//创建一个指定长度的数组类型的对象，这是唯一需要的分配，然后清空缓冲区，以免持有span
+			T[] spans = (T[]) Array.newInstance(kind, count);
+			System.arraycopy(mQuerySpans, 0, spans, 0, count);
+			Arrays.fill(mQuerySpans, 0, count, null);
+			Arrays.fill(mQueryRanges, 0, count, null);
+			return spans;
+		}
+	}
+	/**
+	 * 与getSpans相同，但将span和它们在文本中的位置写入out中，不会创建新的数组，返回span的个数
+	 * span存储在全局时完全不会分配内存，否则只有每个文本块自己的getSpans会创建数组
+	 */
+	public int getSpans(int start, int end, Class kind, SpanQueryResult out)
+	{
+		Lock lock = lockRead();
+		try{
+			return getSpansLocked(start, end, kind, out);
+		}finally{
+			unlock(lock);
+		}
+	}
+	private int getSpansLocked(int start, int end, Class kind, SpanQueryResult out)
+	{
+		if(mSpanStore != null){
+			return mSpanStore.getSpans(start, end, kind, out);
+		}
+		if(kind == null || mSpanCount == 0 || start > end){
+			out.reset(0);
+			return 0;
+		}
+		//与getSpans相同，单点在文本块边界时要包含两端的span
+		int i, j;
+		if(start == end){
+			i = findBlockBeforeIndex(start);
+			j = findBlockAfterIndex(end);
+		}else{
+			i = findBlockAfterIndex(start);
+			j = findBlockBeforeIndex(end);
+		}
+		synchronized(mQueryLock)
+		{
+			final int count = collectSpans(i, start - getBlockStart(i), j, end - getBlockStart(j), kind, true);
+			out.reset(count);
+			for(int k = 0; k < count; ++k)
+			{
+				//span的起始位置在headBlock中，末尾位置在tailBlock中
+				Object span = mQuerySpans[k];
+				SpanRange spanRange = mSpanInBlocks.get(span);
+				Block head = spanRange.headBlock();
+				Block tail = spanRange.tailBlock();
+				int spanStart = getBlockStart(head.index) + head.text.getSpanStart(span);
+				int spanEnd = getBlockStart(tail.index) + tail.text.getSpanEnd(span);
+				out.set(k, span, spanStart, spanEnd, head.text.getSpanFlags(span));
+				mQuerySpans[k] = null;
+				mQueryRanges[k] = null;
+			}
+			out.setCount(count);
+			return count;
+		}
+	}
+	/**
+	 * 收集文本块i~j中与范围重叠的span，放入查询缓冲区mQuerySpans中，返回span的个数
+	 * start和end是相对于文本块i和文本块j的位置，sort表示是否按优先级和插入顺序排序
+	 */
+	private int collectSpans(final int i, final int start, final int j, final int end, Class kind, boolean sort)
+	{
+		//收集范围内所有文本块的span，跨越多个文本块的span只在它出现的第一个文本块中收集
+		//span附着的文本块是连续的，因此它出现的第一个文本块是起始块i，或者是它的headBlock
+		//收集时顺便记录SpanRange，排序时不用再次查找
+		int count = 0;
+		for(int id = i; id <= j; ++id)
+		{
+			Block block = mBlocks[id];
+			int blockStart = id == i ? start : 0;
+			int blockEnd = id == j ? end : block.text.length();
+			Object[] spans = block.text.getSpans(blockStart, blockEnd, kind);
+			for(int k = 0; k < spans.length; ++k)
 			{
-				T[] spans = mBlocks[id].getSpans(start, end, kind);
-				for(int i = 0; i < spans.length; ++i){
-					spanMap.put(spans[i], null);
+				SpanRange spanRange = mSpanInBlocks.get(spans[k]);
+				if(id == i || spanRange.headBlock() == block){
+					addQuerySpan(count++, spans[k], spanRange);
 				}
 			}
-		};
-		runRangeTotal(i, start, j, end, total);	
-
-		int count = spanMap.size();
-		if(count == 0){
-			//没有找到span，提前回收map并返回
-			recyleMap(spanMap);
-			return EmptyArray.emptyArray(kind);
 		}
-
-		//创建一个指定长度的数组类型的对象并转换，然后将span转移到其中
-		T[] spans = (T[]) Array.newInstance(kind, count);
-		spanMap.keySet().toArray(spans);
-		recyleMap(spanMap);
-		if(sort){
-			//虽然无法保证span优先级，但是我们可以重新排序
-			sortSpans(spans);
+		if(sort && count > 1){
+			//span在每个文本块中的顺序和在总文本中的顺序不同，按优先级和插入顺序重新排序
+			final int[] prioSortBuffer = SpanUtils.obtain(count);
+			final int[] orderSortBuffer = SpanUtils.obtain(count);
+			for(int k = 0; k < count; ++k){
+				SpanRange spanRange = mQueryRanges[k];
+				prioSortBuffer[k] = spanRange.headBlock().text.getSpanFlags(mQuerySpans[k]) & SPAN_PRIORITY;
+				orderSortBuffer[k] = spanRange.spanOrder;
+			}
+			SpanUtils.sort(mQuerySpans, count, prioSortBuffer, orderSortBuffer);
+			SpanUtils.recycle(prioSortBuffer);
+			SpanUtils.recycle(orderSortBuffer);
+		}
+		return count;
+	}
+	/* 将span放入查询缓冲区的指定位置，缓冲区不够时扩展 */
+	private void addQuerySpan(int index, Object span, SpanRange spanRange)
+	{
+		if(index >= mQuerySpans.length){
+			int size = GrowingArrayUtils.growSize(index);
+			mQuerySpans = Arrays.copyOf(mQuerySpans, size);
+			mQueryRanges = Arrays.copyOf(mQueryRanges, size);
 		}
-		return spans;
+		mQuerySpans[index] = span;
+		mQueryRanges[index] = spanRange;
 	}
 	
 	/* 将spans按优先级和插入顺序排序 */
@@ -823,7 +1700,7 @@ public class EditableList implements Editable
 		final int[] orderSortBuffer = SpanUtils.obtain(length);
 		for(int i = 0; i < length; ++i){
 			SpanRange spanRange = mSpanInBlocks.get(spans[i]);
-			prioSortBuffer[i] = spanRange.headBlock().getSpanFlags(spans[i]) & SPAN_PRIORITY;
+			prioSortBuffer[i] = spanRange.headBlock().text.getSpanFlags(spans[i]) & SPAN_PRIORITY;
 			orderSortBuffer[i] = spanRange.spanOrder;
 		}
 		SpanUtils.sort(spans, prioSortBuffer, orderSortBuffer);
@@ -831,41 +1708,24 @@ public class EditableList implements Editable
 		SpanUtils.recycle(orderSortBuffer);
 	}
 
-	/* 获取临时span容器 */
-	private static IdentityHashMap obtainMap()
-	{
-		synchronized(sMapBuffer)
-		{
-			for(int i = 0; i < sMapBuffer.length; ++i){
-				if(sMapBuffer[i] != null){
-					IdentityHashMap buffer = sMapBuffer[i];
-					sMapBuffer[i] = null;
-					return buffer;
-				}
-			}
-		}
-		return new IdentityHashMap();
-	}
-	/* 回收临时span容器 */
-	private static void recyleMap(IdentityHashMap buffer)
-	{
-		buffer.clear();
-		synchronized(sMapBuffer)
-		{
-			for(int i = 0; i < sMapBuffer.length; ++i){
-				if(sMapBuffer[i] == null){
-					sMapBuffer[i] = buffer;
-				}
-			}
-		}
-	}
-
 	/**
 	 * 返回在start之后但在limit之前的下一个偏移量，此偏移量是距离start最近的一个span的端点
 	 * 如果在start ~ limit之间没有一个span的端点，则返回limit
 	 */
 	public int nextSpanTransition(final int start, final int limit, Class kind)
 	{
+		Lock lock = lockRead();
+		try{
+			return nextSpanTransitionLocked(start, limit, kind);
+		}finally{
+			unlock(lock);
+		}
+	}
+	private int nextSpanTransitionLocked(final int start, final int limit, Class kind)
+	{
+		if(mSpanStore != null){
+			return mSpanStore.nextSpanTransition(start, limit, kind);
+		}
 		//start和limit的位置可以超出文本的范围，任何的错误都将在之后解决
 		if(mSpanCount == 0){
 			return limit;
@@ -879,18 +1739,18 @@ public class EditableList implements Editable
 		//不断向后寻找下个span的端点
 		for (; i < mBlockSize; ++i)
 		{
-			Editable block = mBlocks[i];
+			Editable block = mBlocks[i].text;
 			int length = block.length();
-			int blockStart = mBlockStarts[i];
+			int blockStart = getBlockStart(i);
 			//第一个文本块应该从start-blockStart开始找(不包含start端点)，这包括start为负数时，可以从总文本的前面开始找
 			//如果有之后的文本块，则从-1开始找(包含0端点)
 			int next = block.nextSpanTransition(start-blockStart, limit-blockStart, kind);
-			if (next == 0 && !hasSpanPointAt(this, blockStart, kind)){
+			if (next == 0 && !hasSpanPointAtBlockStart(i, kind)){
 				//如果有一个span附着于文本块开头但它并不是总文本中的端点(而是向前衔接的span)
 				//因此这里跳过它，继续寻找0之后的下个span的端点
 				next = block.nextSpanTransition(0, limit-blockStart, kind);
 			}
-			if (next < length || (next == length && hasSpanPointAt(this, blockStart+length, kind))){
+			if (next < length || (next == length && hasSpanPointAtBlockStart(i+1, kind))){
 				//在文本块中找到了下个span的端点则返回它在文本块中的位置next，没有找到span会返回limit-blockStart
 				//不管找没找到，只有next < length，才能说明在自身中找到了span，或者没找到但已经到达limit，此时返回
 				//反之，如果next > length，则说明一定没找到，并且limit还在自己之后，还需要在之后的文本块中找
@@ -901,13 +1761,37 @@ public class EditableList implements Editable
 		return limit;
 	}
 	
-	/* 是否有span的端点正好处于文本中的指定位置 */
-	private static <T> boolean hasSpanPointAt(Spanned text, int offset, Class<T> kind)
+	/**
+	 * 是否有span的端点正好处于文本块i的起始位置，也就是文本块i-1和文本块i的边界，i可以为mBlockSize(文本末尾)
+	 * 只需检查边界两侧的文本块，span在文本中的起始位置总在headBlock中，末尾位置总在tailBlock中，
+	 * 因此边界处被切割的span不是端点，而以该文本块为headBlock或tailBlock的span才是端点
+	 * 这不需要获取整个文本的span，也不需要排序和计算span在文本中的位置
+	 */
+	private boolean hasSpanPointAtBlockStart(int i, Class kind)
 	{
-		T[] spans = text.getSpans(offset, offset, kind);
-		for(int i = 0; i < spans.length; ++i){
-			if(text.getSpanStart(spans[i]) == offset || text.getSpanEnd(spans[i]) == offset){
-				return true;
+		if(i < mBlockSize)
+		{
+			Block block = mBlocks[i];
+			Object[] spans = block.text.getSpans(0, 0, kind);
+			for(int k = 0; k < spans.length; ++k){
+				SpanRange spanRange = mSpanInBlocks.get(spans[k]);
+				if((spanRange.headBlock() == block && block.text.getSpanStart(spans[k]) == 0)
+				   || (spanRange.tailBlock() == block && block.text.getSpanEnd(spans[k]) == 0)){
+					return true;
+				}
+			}
+		}
+		if(i > 0)
+		{
+			Block block = mBlocks[i-1];
+			int length = block.text.length();
+			Object[] spans = block.text.getSpans(length, length, kind);
+			for(int k = 0; k < spans.length; ++k){
+				SpanRange spanRange = mSpanInBlocks.get(spans[k]);
+				if((spanRange.tailBlock() == block && block.text.getSpanEnd(spans[k]) == length)
+				   || (spanRange.headBlock() == block && block.text.getSpanStart(spans[k]) == length)){
+					return true;
+				}
 			}
 		}
 		return false;
@@ -917,6 +1801,15 @@ public class EditableList implements Editable
 		return mLength;
 	}
 	public char charAt(int index)
+	{
+		Lock lock = lockRead();
+		try{
+			return charAtLocked(index);
+		}finally{
+			unlock(lock);
+		}
+	}
+	char charAtLocked(int index)
 	{
 		int len = mLength;
         if (index < 0) {
@@ -926,10 +1819,19 @@ public class EditableList implements Editable
         }
 		//先走到start指定的文本块，然后获取相对于该文本块位置的字符
 		int i = findBlockAfterIndex(index);
-		int start = mBlockStarts[i];
-		return mBlocks[i].charAt(index - start);
+		int start = getBlockStart(i);
+		return mBlocks[i].text.charAt(index - start);
 	}
 	public void getChars(int start, int end, final char[] dest, final int destoff)
+	{
+		Lock lock = lockRead();
+		try{
+			getCharsLocked(start, end, dest, destoff);
+		}finally{
+			unlock(lock);
+		}
+	}
+	void getCharsLocked(int start, int end, final char[] dest, final int destoff)
 	{
 		checkRange("getChars", start, end);
 		if(start == end){
@@ -943,7 +1845,7 @@ public class EditableList implements Editable
 			@Override
 			public void rangeTotal(int id, int start, int end)
 			{
-				mBlocks[id].getChars(start, end, dest, destoff+getCharsCount);
+				mBlocks[id].text.getChars(start, end, dest, destoff+getCharsCount);
 				getCharsCount += end-start;
 				//累计已经获取的字符数，便于计算下块的字符在dest的起始获取位置
 			}
@@ -951,8 +1853,94 @@ public class EditableList implements Editable
 		runRangeTotal(start, end, total);
 	}
 	
-	public CharSequence subSequence(int start, int end){
-		return new EditableList(this, start, end);
+	/**
+	 * 获取指定范围的只读视图，不拷贝任何文本，它在下次修改文本之前有效
+	 * 与subSequence不同，它不包含span，也不能修改
+	 * 开启了并发访问时可以在任意线程中调用，创建视图和之后每次读取都持有读锁
+	 */
+	public BlockCharSequence view(int start, int end)
+	{
+		Lock lock = lockRead();
+		try{
+			checkRange("view", start, end);
+			return new BlockCharSequence(this, start, end);
+		}finally{
+			unlock(lock);
+		}
+	}
+	public BlockCharSequence view()
+	{
+		Lock lock = lockRead();
+		try{
+			return new BlockCharSequence(this, 0, mLength);
+		}finally{
+			unlock(lock);
+		}
+	}
+	/* 文本的修改次数，只有修改文本时才增加，设置span不会改变它，与snapshot().getVersion()比较可以知道快照是否仍与文本一致 */
+	public int getModCount(){
+		return mModCount;
+	}
+	
+	/**
+	 * 获取从index开始顺序读取文本的游标，逐个字符扫描时比charAt快得多
+	 * 游标在下次修改文本之前有效，之后可以调用seek重新定位
+	 * 开启了并发访问时可以在任意线程中调用，游标定位和每次从文本块读取一段字符时持有读锁
+	 */
+	public BlockCharCursor cursor(int index){
+		return new BlockCharCursor(this, index);
+	}
+	public BlockCharCursor cursor(){
+		return new BlockCharCursor(this, 0);
+	}
+	int getBlockModCount(){
+		return mBlockModCount;
+	}
+	
+	/**
+	 * 获取当前文本的不可变快照，它可以交给其它线程读取，之后修改文本不会影响快照
+	 * 快照与EditableList共享文本块，创建它只需拷贝文本块的引用，文本没有修改时会返回同一个快照
+	 * 没有开启并发访问时，必须在修改文本的线程中调用，开启后可以在任意线程中调用，但不能在持有读锁时调用
+	 */
+	public TextSnapshot snapshot()
+	{
+		//创建快照会修改快照代数，因此需要写锁
+		Lock lock = lockWrite();
+		try{
+			return snapshotLocked();
+		}finally{
+			unlockWrite(lock);
+		}
+	}
+	private TextSnapshot snapshotLocked()
+	{
+		TextSnapshot last = mLastSnapshot;
+		if(last != null && last.getVersion() == mModCount){
+			return last;
+		}
+		final int size = mBlockSize;
+		Editable[] texts = new Editable[size];
+		int[] starts = new int[size];
+		int start = 0;
+		for(int i = 0; i < size; ++i){
+			texts[i] = mBlocks[i].text;
+			starts[i] = start;
+			start += texts[i].length();
+		}
+		//之后所有现有的文本块都与快照共享，修改前需要拷贝
+		mSnapshotGen++;
+		mLastSnapshot = new TextSnapshot(texts, starts, size, mLength, mModCount);
+		return mLastSnapshot;
+	}
+	public CharSequence subSequence(int start, int end)
+	{
+		//拷贝文本和span期间不能有其它线程修改
+		Lock lock = lockRead();
+		try{
+			return new EditableList(this, start, end, mPolicy);
+		}finally{
+			unlock(lock);
+		}
 	}
 	public String toString(){
 		int len = mLength;
@@ -1084,8 +2072,8 @@ public class EditableList implements Editable
 		//该范围会尽可能地小，不会包含两边的空范围
 		int i = findBlockAfterIndex(start);
 		int j = findBlockBeforeIndex(end);
-		start -= mBlockStarts[i];
-		end -= mBlockStarts[j];
+		start -= getBlockStart(i);
+		end -= getBlockStart(j);
 
 		//从起始块开始，调至末尾块
 		runRangeTotal(i, start, j, end, total);
@@ -1101,9 +2089,9 @@ public class EditableList implements Editable
 			total.rangeTotal(i, iStart, jEnd);
 		}
 		else if(i < j){
-			total.rangeTotal(i, iStart, mBlocks[i].length());
+			total.rangeTotal(i, iStart, mBlocks[i].text.length());
 			for(++i; i < j; ++i){
-				total.rangeTotal(i, 0, mBlocks[i].length());
+				total.rangeTotal(i, 0, mBlocks[i].text.length());
 			}
 			total.rangeTotal(j, 0, jEnd);
 		}
@@ -1165,14 +2153,16 @@ public class EditableList implements Editable
 	
 	/**
 	 * 存储span附着于文本块列表中的文本块范围和插入顺序，存储文本块引用而不是下标，因为下标会变化
+	 * 文本块自己记录了下标，因此可以直接从引用获取下标，不需要额外查表
 	 * 由于大部分情况下都是增加和删除文本块，并且几乎只会获取首尾文本块，因此这里使用范围block
 	 * 范围block以(startBlock，endBlock)来表示span附着于文本块列表中的(起始文本块，末尾文本块)
 	 */
 	private final class SpanRange
 	{
-		private Editable startBlock;
-		private Editable endBlock;
+		private Block startBlock;
+		private Block endBlock;
 		private final int spanOrder;
+		private int batchIndex = -1; //在setSpans中，span最后一次出现的下标
 
 		public SpanRange(int order){
 			spanOrder = order;
@@ -1180,7 +2170,7 @@ public class EditableList implements Editable
 		}
 		
 		/* 直接在最后添加一个新文本块，允许添加重复的文本块，此时范围不会变化 */
-		public void add(Editable dstBlock)
+		public void add(Block dstBlock)
 		{
 			if(startBlock == null){
 				startBlock = endBlock = dstBlock;
@@ -1190,7 +2180,7 @@ public class EditableList implements Editable
 		}
 		
 		/* span被加入index所指定的文本块时，添加span与文本块的绑定 */
-		public void add(int index, Editable dstBlock)
+		public void add(int index, Block dstBlock)
 		{
 			//如果SpanRange的范围为空，则将该文本块作为SpanRange的范围
 			//如果加入的文本块的位置在旧范围之外，需要扩展范围并包含该文本块(加入位置在范围内时范围会自动扩大)
@@ -1199,8 +2189,8 @@ public class EditableList implements Editable
 				startBlock = endBlock = dstBlock;
 				return;
 			}
-			int start = mIndexOfBlocks.get(startBlock);
-			int end = mIndexOfBlocks.get(endBlock);
+			int start = startBlock.index;
+			int end = endBlock.index;
 			if(index < start){
 				startBlock = dstBlock;
 			}
@@ -1210,7 +2200,7 @@ public class EditableList implements Editable
 		}
 		
 		/* span从指定的文本块中移除时，移除span与文本块的绑定 */
-		public void remove(int index, Editable dstBlock)
+		public void remove(int index, Block dstBlock)
 		{
 			//如果SpanRange的范围为空则什么也不做
 			//如果SpanRange的范围为单个文本块并且需要移除，则将SpanRange置为空
@@ -1236,10 +2226,10 @@ public class EditableList implements Editable
 				return;
 			}
 			//找到span附着于文本块列表中的范围，并将span从范围内的这些文本块中移除
-			int start = mIndexOfBlocks.get(startBlock);
-			int end = mIndexOfBlocks.get(endBlock);
+			int start = startBlock.index;
+			int end = endBlock.index;
 			for(;start <= end; ++start){
-				mBlocks[start].removeSpan(span);
+				mBlocks[start].text.removeSpan(span);
 			}
 			startBlock = endBlock = null;
 		}
@@ -1247,14 +2237,63 @@ public class EditableList implements Editable
 		/* 获取span附着于文本块列表的第一个文本块，
 		 * 如果span没有附着于文本块，则返回null
 		 */
-		public Editable headBlock(){
+		public Block headBlock(){
 			return startBlock;
 		}
 		/* 获取span附着于文本块列表的最后一个文本块，
 		 * 如果span没有附着于文本块，则返回null
 		 */
-		public Editable tailBlock(){
+		public Block tailBlock(){
 			return endBlock;
 		}
 	}
+	
+	/**
+	 * 文本块的碎片统计，小文本块是指长度不足最大容量四分之一的文本块
+	 * 大量的小文本块会让文本块列表和BlockLayout中的数组变长，并使查找文本块变慢
+	 */
+	public static final class BlockStats
+	{
+		public final int blockCount;      //文本块的个数
+		public final int smallBlockCount; //小文本块的个数
+		public final int textLength;      //总文本长度
+		public final float fillRatio;     //文本块的平均填充率，也就是平均长度与最大容量之比
+
+		BlockStats(int blockCount, int smallBlockCount, int textLength, int maxCount)
+		{
+			this.blockCount = blockCount;
+			this.smallBlockCount = smallBlockCount;
+			this.textLength = textLength;
+			this.fillRatio = blockCount == 0 ? 0 : (float) textLength / blockCount / maxCount;
+		}
+
+		/* 小文本块足够多，并且超过四分之一时，认为需要整理 */
+		public boolean isFragmented(){
+			return smallBlockCount >= 16 && smallBlockCount * 4 > blockCount;
+		}
+
+		@Override
+		public String toString(){
+			return "BlockStats{blocks=" + blockCount + ", small=" + smallBlockCount + ", length=" + textLength + ", fill=" + fillRatio + "}";
+		}
+	}
+	
+	/**
+	 * 文本块，包装了文本块的文本，并记录文本块在mBlocks和mBlockStarts中的下标
+	 * 下标在refreshInvariants中从mLowBlockIndexMark开始刷新，文本块被移除后下标为-1
+	 * span和文本块绑定时，绑定的是Block而不是文本，因此替换文本块的文本时不需要修改绑定
+	 */
+	private static final class Block
+	{
+		Editable text;
+		int index;
+		int gen; //创建文本时的快照代数，与mSnapshotGen不同时，文本与快照共享，为COLD_GEN时文本在堆外
+		int use; //上次修改时的使用时钟
+		
+		Block(Editable text, int index, int gen){
+			this.text = text;
+			this.index = index;
+			this.gen = gen;
+		}
+	}
 }
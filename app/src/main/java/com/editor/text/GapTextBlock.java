@@ -0,0 +1,253 @@
+package com.editor.text;
+
+import android.text.*;
+import com.editor.base.array.*;
+
+/**
+ * 轻量的文本块，用一个char[]间隙缓冲区存储文本，
+ * 在间隙处连续插入或删除文本时，只需修改间隙，而不用移动之后的文本
+ * 只有在设置了span时，才会创建SpanStore来存储span，没有span的文本块不会有任何额外的开销
+ *
+ * 与EditableList相同，它只能设置标志为SPAN_EXCLUSIVE_EXCLUSIVE并且长度至少为1的span，其它span会被忽略，
+ * 并且也不会向TextWatcher和SpanWatcher发送事件，因此它只适合作为EditableList的文本块
+ */
+final class GapTextBlock implements Editable
+{
+	private char[] mText;   //文本数组，中间有一段间隙
+	private int mGapStart;  //间隙的起始位置
+	private int mGapLength; //间隙的长度
+	private SpanStore mSpans; //存储span，在第一次设置span时才创建
+	private InputFilter[] mFilters = NO_FILTERS;
+
+	private static final InputFilter[] NO_FILTERS = new InputFilter[0];
+
+	public GapTextBlock(){
+		this("", 0, 0);
+	}
+	public GapTextBlock(CharSequence text){
+		this(text, 0, text.length());
+	}
+	public GapTextBlock(CharSequence text, int start, int end)
+	{
+		int srclen = end - start;
+		if(srclen < 0) throw new StringIndexOutOfBoundsException();
+
+		mText = ArrayUtils.newUnpaddedCharArray(GrowingArrayUtils.growSize(srclen));
+		mGapStart = srclen;
+		mGapLength = mText.length - srclen;
+		TextUtils.getChars(text, start, end, mText, 0);
+		if(text instanceof Spanned){
+			TextUtils.copySpansFrom((Spanned)text, start, end, Object.class, this, 0);
+		}
+	}
+
+	public int length(){
+		return mText.length - mGapLength;
+	}
+	public char charAt(int index)
+	{
+		int len = length();
+		if (index < 0) {
+			throw new IndexOutOfBoundsException("charAt: " + index + " < 0");
+		} else if (index >= len) {
+			throw new IndexOutOfBoundsException("charAt: " + index + " >= length " + len);
+		}
+		return index < mGapStart ? mText[index] : mText[index + mGapLength];
+	}
+	public void getChars(int start, int end, char[] dest, int destoff)
+	{
+		checkRange("getChars", start, end);
+		//分别拷贝间隙之前和之后的文本
+		if(end <= mGapStart){
+			System.arraycopy(mText, start, dest, destoff, end - start);
+		}
+		else if(start >= mGapStart){
+			System.arraycopy(mText, start + mGapLength, dest, destoff, end - start);
+		}
+		else{
+			System.arraycopy(mText, start, dest, destoff, mGapStart - start);
+			System.arraycopy(mText, mGapStart + mGapLength, dest, destoff + (mGapStart - start), end - mGapStart);
+		}
+	}
+	public CharSequence subSequence(int start, int end){
+		checkRange("subSequence", start, end);
+		return new GapTextBlock(this, start, end);
+	}
+	public String toString()
+	{
+		int len = length();
+		char[] buf = new char[len];
+		getChars(0, len, buf, 0);
+		return new String(buf);
+	}
+
+	public Editable replace(int st, int en, CharSequence tb, int tbStart, int tbEnd)
+	{
+		checkRange("replace", st, en);
+		for (int i = 0; i < mFilters.length; ++i){
+			CharSequence repl = mFilters[i].filter(tb, tbStart, tbEnd, this, st, en);
+			if (repl!=null) {
+				tb = repl;
+				tbStart = 0;
+				tbEnd = repl.length();
+			}
+		}
+
+		final int before = en - st;
+		final int after = tbEnd - tbStart;
+		if(before == 0 && after == 0){
+			return this;
+		}
+		//将间隙移动到删除范围之后，先扩大间隙来删除文本，再从间隙开头插入文本
+		moveGapTo(en);
+		mGapStart -= before;
+		mGapLength += before;
+		if(mGapLength < after){
+			resizeFor(length() + after);
+		}
+		TextUtils.getChars(tb, tbStart, tbEnd, mText, mGapStart);
+		mGapStart += after;
+		mGapLength -= after;
+
+		if(mSpans != null){
+			mSpans.replace(st, en, after);
+		}
+		if(tb instanceof Spanned){
+			//与SpannableStringBuilder相同，只加入还不存在的span
+			SpanUtils.copyUniqueSpans((Spanned)tb, tbStart, tbEnd, Object.class, this, st);
+		}
+		return this;
+	}
+
+	/* 将间隙移动到指定位置，只需移动新旧间隙之间的文本 */
+	private void moveGapTo(int where)
+	{
+		if(where == mGapStart){
+			return;
+		}
+		if(where < mGapStart){
+			int count = mGapStart - where;
+			System.arraycopy(mText, where, mText, where + mGapLength, count);
+		}else{
+			int count = where - mGapStart;
+			System.arraycopy(mText, mGapStart + mGapLength, mText, mGapStart, count);
+		}
+		mGapStart = where;
+	}
+
+	/* 扩展文本数组，使其至少可以容纳size个字符 */
+	private void resizeFor(int size)
+	{
+		final int oldLength = mText.length;
+		char[] newText = ArrayUtils.newUnpaddedCharArray(GrowingArrayUtils.growSize(size));
+		final int after = oldLength - (mGapStart + mGapLength);
+		System.arraycopy(mText, 0, newText, 0, mGapStart);
+		System.arraycopy(mText, oldLength - after, newText, newText.length - after, after);
+		mGapLength += newText.length - oldLength;
+		mText = newText;
+	}
+
+	/**
+	 * 调整内部数组，使得间隙的长度不超过reserve，这会释放文本块因之前增长而多出的空间
+	 * 这代替了重新创建一个SpannableStringBuilder，span和文本块本身都保持不变
+	 */
+	void trimToSize(int reserve)
+	{
+		if(mGapLength <= reserve){
+			return;
+		}
+		final int len = length();
+		char[] newText = ArrayUtils.newUnpaddedCharArray(len + reserve);
+		final int after = len - mGapStart;
+		System.arraycopy(mText, 0, newText, 0, mGapStart);
+		System.arraycopy(mText, mGapStart + mGapLength, newText, newText.length - after, after);
+		mGapLength = newText.length - len;
+		mText = newText;
+	}
+
+	public Editable replace(int st, int en, CharSequence text){
+		return replace(st, en, text, 0, text.length());
+	}
+	public Editable insert(int where, CharSequence text, int start, int end){
+		return replace(where, where, text, start, end);
+	}
+	public Editable insert(int where, CharSequence text){
+		return replace(where, where, text, 0, text.length());
+	}
+	public Editable delete(int st, int en){
+		return replace(st, en, "", 0, 0);
+	}
+	public Editable append(CharSequence text){
+		int len = length();
+		return replace(len, len, text, 0, text.length());
+	}
+	public Editable append(CharSequence text, int start, int end){
+		int len = length();
+		return replace(len, len, text, start, end);
+	}
+	public Editable append(char text){
+		return append(String.valueOf(text));
+	}
+	public void clear(){
+		replace(0, length(), "", 0, 0);
+	}
+
+	public void setSpan(Object span, int start, int end, int flags)
+	{
+		checkRange("setSpan", start, end);
+		if(start == end || (flags & SPAN_EXCLUSIVE_EXCLUSIVE) != SPAN_EXCLUSIVE_EXCLUSIVE){
+			return;
+		}
+		if(mSpans == null){
+			mSpans = new SpanStore();
+		}
+		mSpans.setSpan(span, start, end, flags);
+	}
+	public void removeSpan(Object span){
+		if(mSpans != null){
+			mSpans.removeSpan(span);
+		}
+	}
+	public void clearSpans(){
+		mSpans = null;
+	}
+	public <T> T[] getSpans(int start, int end, Class<T> kind){
+		if(mSpans == null){
+			return kind == null ? (T[]) EmptyArray.OBJECT : EmptyArray.emptyArray(kind);
+		}
+		return mSpans.getSpans(start, end, kind);
+	}
+	public int getSpanStart(Object span){
+		return mSpans == null ? -1 : mSpans.getSpanStart(span);
+	}
+	public int getSpanEnd(Object span){
+		return mSpans == null ? -1 : mSpans.getSpanEnd(span);
+	}
+	public int getSpanFlags(Object span){
+		return mSpans == null ? 0 : mSpans.getSpanFlags(span);
+	}
+	public int nextSpanTransition(int start, int limit, Class kind){
+		return mSpans == null ? limit : mSpans.nextSpanTransition(start, limit, kind);
+	}
+
+	public void setFilters(InputFilter[] filters){
+		if (filters == null) {
+            throw new IllegalArgumentException();
+        }
+        mFilters = filters;
+	}
+	public InputFilter[] getFilters(){
+		return mFilters;
+	}
+
+	private void checkRange(final String operation, int start, int end)
+	{
+		if (end < start) {
+			throw new IndexOutOfBoundsException(operation + " (" + start + " ... " + end + ") has end before start");
+		}
+		int len = length();
+		if (start < 0 || end > len) {
+			throw new IndexOutOfBoundsException(operation + " (" + start + " ... " + end + ") ends beyond length " + len);
+		}
+	}
+}
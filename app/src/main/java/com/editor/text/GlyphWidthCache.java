@@ -0,0 +1,242 @@
+package com.editor.text;
+
+import android.graphics.*;
+import android.os.*;
+import android.text.*;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 字符宽度的缓存，每种(字体, 字号, 横向缩放, 倾斜, 伪粗体, 字间距)共用一个，测量时直接累加缓存的宽度，不必每次都调用画笔的本地方法
+ * BMP中的字符按256个一页存储在数组中，页在第一次用到时才创建，BMP之外的字符存储在哈希表中
+ * 同时缓存了空格的宽度和字体的度量，它们在每次绘制和测量时都会用到
+ *
+ * 只有等宽字体才累加缓存的宽度，因为比例字体在字符之间有字距调整，单独测量的宽度之和与整段测量的结果不同
+ * 组合字符，变体选择符等会与前后的字符一起塑形，遇到它们时也返回false，由调用者整段测量
+ *
+ * 缓存可以在多个线程中使用，读取宽度不需要加锁，缺少的宽度在锁外用调用者的画笔测量后直接写入
+ * 同一字符的宽度总是相同的，两个线程同时测量同一字符只是重复写入相同的值
+ * 页在填充NaN后才通过AtomicReferenceArray发布，其它线程看到的宽度要么是NaN，要么是测量的结果
+ * 画笔的其它属性(如字体特性，语言区域)不在缓存的键中，调用者改变它们后应该调用BaseLayout.adjustLayout
+ */
+final class GlyphWidthCache
+{
+	private final Key mKey;               //创建缓存时画笔的属性
+	private final boolean mFixedPitch;    //是否为等宽字体
+	private final float mSpaceWidth;      //空格的宽度
+	private final float mFontTop, mFontBottom, mFontAscent; //字体的度量
+	private final AtomicReferenceArray<float[]> mPages; //BMP字符的宽度，未测量的宽度为NaN
+	private final ConcurrentHashMap<Integer, Float> mSupplementary; //BMP之外的字符的宽度
+
+	private static final int PAGE_SHIFT = 8;
+	private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	private static final int MAX_CACHES = 8;  //最多保留几种(字体, 字号)的缓存
+	private static final LinkedHashMap<Key, GlyphWidthCache> sCaches = new LinkedHashMap<>(16, 0.75f, true);
+
+	private GlyphWidthCache(TextPaint paint, Key key)
+	{
+		mKey = key;
+		mSpaceWidth = paint.measureText(" ");
+		//所有可打印的ASCII字符宽度都相同的字体，当作等宽字体
+		boolean fixed = true;
+		for(char c = 0x21; c <= 0x7E && fixed; ++c){
+			fixed = paint.measureText(String.valueOf(c)) == mSpaceWidth;
+		}
+		mFixedPitch = fixed;
+		Paint.FontMetrics font = paint.getFontMetrics();
+		mFontTop = font.top;
+		mFontBottom = font.bottom;
+		mFontAscent = font.ascent;
+		mPages = new AtomicReferenceArray<>((Character.MAX_VALUE + 1) >> PAGE_SHIFT);
+		mSupplementary = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * 获取与画笔的属性对应的缓存，没有则创建一个，最久未使用的缓存会被移除
+	 * 这需要全局的锁，调用者应该保存获取的缓存，在matches(paint)仍然成立时复用它
+	 */
+	static GlyphWidthCache obtain(TextPaint paint)
+	{
+		Key key = new Key(paint);
+		synchronized(sCaches)
+		{
+			GlyphWidthCache cache = sCaches.get(key);
+			if(cache == null){
+				cache = new GlyphWidthCache(paint, key);
+				sCaches.put(key, cache);
+				if(sCaches.size() > MAX_CACHES){
+					Iterator<Map.Entry<Key, GlyphWidthCache>> it = sCaches.entrySet().iterator();
+					it.next();
+					it.remove();
+				}
+			}
+			return cache;
+		}
+	}
+
+	/* 画笔影响字符宽度的属性是否与缓存的相同，不会创建对象 */
+	boolean matches(TextPaint paint){
+		return mKey.matches(paint);
+	}
+
+	boolean isFixedPitch(){
+		return mFixedPitch;
+	}
+	float getSpaceWidth(){
+		return mSpaceWidth;
+	}
+	float getFontTop(){
+		return mFontTop;
+	}
+	float getFontBottom(){
+		return mFontBottom;
+	}
+	float getFontAscent(){
+		return mFontAscent;
+	}
+
+	/**
+	 * 用缓存的宽度填充chars中start~end的每个字符的宽度，还没有缓存的字符用paint测量后加入缓存
+	 * 与TextPaint.getTextWidths相同，代理对的宽度在高位代理上，低位代理的宽度为0
+	 * 如果不是等宽字体，或者有需要与前后字符一起塑形的字符，返回false，此时widths中的内容无效
+	 */
+	boolean getTextWidths(char[] chars, int start, int end, TextPaint paint, float[] widths)
+	{
+		if(!mFixedPitch){
+			return false;
+		}
+		float[] measure = null; //测量单个字符时使用，只在有字符没有缓存时创建
+		for(int i = start; i < end; ++i)
+		{
+			final char c = chars[i];
+			if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)
+			{
+				if(!Character.isHighSurrogate(c) || i + 1 >= end || !Character.isLowSurrogate(chars[i + 1])){
+					return false;
+				}
+				int codePoint = Character.toCodePoint(c, chars[i + 1]);
+				if(!isIsolated(codePoint)){
+					return false;
+				}
+				Float width = mSupplementary.get(codePoint);
+				if(width == null){
+					if(measure == null){
+						measure = new float[2];
+					}
+					paint.getTextWidths(chars, i, 2, measure);
+					width = measure[0];
+					mSupplementary.put(codePoint, width);
+				}
+				widths[i - start] = width;
+				widths[i + 1 - start] = 0;
+				++i;
+				continue;
+			}
+			if(!isIsolated(c)){
+				return false;
+			}
+			float[] page = obtainPage(c >> PAGE_SHIFT);
+			float width = page[c & (PAGE_SIZE - 1)];
+			if(width != width){
+				//NaN表示还没有测量
+				if(measure == null){
+					measure = new float[2];
+				}
+				paint.getTextWidths(chars, i, 1, measure);
+				width = measure[0];
+				page[c & (PAGE_SIZE - 1)] = width;
+			}
+			widths[i - start] = width;
+		}
+		return true;
+	}
+	/* 获取一页宽度，页在填充NaN之后才发布，两个线程同时创建时只保留先发布的 */
+	private float[] obtainPage(int index)
+	{
+		float[] page = mPages.get(index);
+		if(page == null){
+			page = new float[PAGE_SIZE];
+			Arrays.fill(page, Float.NaN);
+			if(!mPages.compareAndSet(index, null, page)){
+				page = mPages.get(index);
+			}
+		}
+		return page;
+	}
+
+	/* 等宽字体中，可打印的ASCII字符都只占一列，宽度就是空格的宽度 */
+	static boolean isColumnChar(char c){
+		return c >= 0x20 && c <= 0x7E;
+	}
+
+	/**
+	 * 字符的宽度是否与前后的字符无关，拉丁字母，中日韩文字和全角字符是这样的
+	 * 组合字符，阿拉伯文和印度文等复杂文字，零宽连接符和变体选择符，肤色修饰符和国旗的区域指示符都会与前后的字符一起塑形
+	 */
+	private static boolean isIsolated(int c)
+	{
+		if(c < 0x0300){
+			return true;
+		}
+		if(c < 0x10000){
+			return (c >= 0x2E80 && c <= 0x9FFF) || (c >= 0xAC00 && c <= 0xD7A3)
+				|| (c >= 0xF900 && c <= 0xFAFF) || (c >= 0xFF01 && c <= 0xFF60);
+		}
+		return !(c >= 0x1F1E6 && c <= 0x1F1FF) && !(c >= 0x1F3FB && c <= 0x1F3FF) && c < 0xE0000;
+	}
+
+	/* 影响字符宽度的画笔属性，字间距在Android 5.0之前不存在，总是0 */
+	private static final class Key
+	{
+		final Typeface typeface;
+		final float textSize;
+		final float textScaleX;
+		final float textSkewX;
+		final boolean fakeBold;
+		final float letterSpacing;
+
+		Key(TextPaint paint){
+			typeface = paint.getTypeface();
+			textSize = paint.getTextSize();
+			textScaleX = paint.getTextScaleX();
+			textSkewX = paint.getTextSkewX();
+			fakeBold = paint.isFakeBoldText();
+			letterSpacing = getLetterSpacing(paint);
+		}
+
+		boolean matches(TextPaint paint){
+			return paint.getTypeface() == typeface && paint.getTextSize() == textSize
+				&& paint.getTextScaleX() == textScaleX && paint.getTextSkewX() == textSkewX
+				&& paint.isFakeBoldText() == fakeBold && getLetterSpacing(paint) == letterSpacing;
+		}
+
+		private static float getLetterSpacing(TextPaint paint){
+			return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? paint.getLetterSpacing() : 0;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if(!(obj instanceof Key)){
+				return false;
+			}
+			Key other = (Key) obj;
+			return typeface == other.typeface && textSize == other.textSize
+				&& textScaleX == other.textScaleX && textSkewX == other.textSkewX
+				&& fakeBold == other.fakeBold && letterSpacing == other.letterSpacing;
+		}
+
+		@Override
+		public int hashCode(){
+			int hash = System.identityHashCode(typeface) * 31 + Float.floatToIntBits(textSize);
+			hash = hash * 31 + Float.floatToIntBits(textScaleX);
+			hash = hash * 31 + Float.floatToIntBits(textSkewX);
+			hash = hash * 31 + Float.floatToIntBits(letterSpacing);
+			return hash * 31 + (fakeBold ? 1 : 0);
+		}
+	}
+}
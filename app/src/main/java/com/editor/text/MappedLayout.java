@@ -0,0 +1,155 @@
+package com.editor.text;
+
+import android.graphics.*;
+import android.text.*;
+import com.editor.base.array.*;
+
+/**
+ * 只读查看模式的Layout，建立在映射的文件(MappedText)上，不会测量或解码整个文件
+ *
+ * MappedText每隔LINE_CHECKPOINT行记录一次行的起始位置，这里将LINE_CHECKPOINT行作为一页，
+ * 用到某一行时才从页的起始位置解码这一页，找出每行的起始位置，只缓存最近使用的PAGE_CACHE页
+ * 绘制时只会用到可见的一两页，因此打开文件和滚动的开销都与文件大小无关，堆中也只有几页的行位置
+ *
+ * 文本的宽度在绘制时按可见的行增长，行数随着MappedText的索引增长
+ */
+public class MappedLayout extends BaseLayout
+{
+	private static final int PAGE_CACHE = 4;      //最多缓存几页行的位置
+	private static final int DECODE_CHARS = 4096; //寻找换行符时每次解码的字符数
+	private static final int MEASURE_CHARS = 4096; //测量宽度时，行超过这个长度就按前面的部分估计
+
+	private final MappedText mText;
+	private final LinePage[] mPages; //最近使用的页，第0个是最近使用的
+	private final Rect mSee;
+
+	public MappedLayout(MappedText text, TextPaint paint, int tabSize, int lineColor, float lineSpacing)
+	{
+		super(text, paint, tabSize, lineColor, lineSpacing);
+		mText = text;
+		mPages = new LinePage[PAGE_CACHE];
+		mSee = new Rect();
+	}
+
+	/* 绘制前检查文件是否被截断，并用可见的行的宽度扩大文本的宽度 */
+	@Override
+	public void draw(Canvas canvas, int cursorOffsetVertical)
+	{
+		mText.checkFile();
+		if(canvas.getClipBounds(mSee)){
+			int endLine = getLineForVertical(mSee.bottom);
+			for(int line = getLineForVertical(mSee.top); line <= endLine; ++line){
+				increaseWidthTo(measureLineWidth(line));
+			}
+		}
+		super.draw(canvas, cursorOffsetVertical);
+	}
+	/* 行很长时只测量前面的部分，再按字符数估计整行的宽度，以免横向滚动范围需要解码整行 */
+	private float measureLineWidth(int line)
+	{
+		int start = getLineStart(line);
+		int end = getLineEnd(line);
+		if(end - start <= MEASURE_CHARS){
+			return measureText(mText, start, end, getPaint());
+		}
+		float width = measureText(mText, start, start + MEASURE_CHARS, getPaint());
+		return width / MEASURE_CHARS * (end - start);
+	}
+
+	@Override
+	public int getLineCount(){
+		return mText.getLineCount();
+	}
+
+	@Override
+	public int getLineStart(int line)
+	{
+		if(line < 1) return 0;
+		if(line >= getLineCount()) return mText.length();
+
+		int index = line % MappedText.LINE_CHECKPOINT;
+		LinePage page = obtainPage(line / MappedText.LINE_CHECKPOINT);
+		if(index >= page.count){
+			//读取行数之后又索引了新的行，这一页已经过时
+			page = obtainPage(line / MappedText.LINE_CHECKPOINT);
+			if(index >= page.count){
+				return mText.length();
+			}
+		}
+		return page.starts[index];
+	}
+
+	@Override
+	public int getLineForOffset(int offset)
+	{
+		int length = mText.length();
+		offset = offset < 0 ? 0 : (offset > length ? length : offset);
+		int p = mText.getPageForOffset(offset);
+		LinePage page = obtainPage(p);
+		return p * MappedText.LINE_CHECKPOINT + ArrayUtils.findRangeContainingIndex(page.starts, page.count, offset);
+	}
+
+	/* 获取第p页，缓存中没有或者已经过时时重新解码，并移到缓存的最前面 */
+	private LinePage obtainPage(int p)
+	{
+		final LinePage[] pages = mPages;
+		int i = 0;
+		for(; i < pages.length - 1; ++i){
+			LinePage page = pages[i];
+			if(page != null && page.page == p){
+				break;
+			}
+		}
+		LinePage page = pages[i];
+		if(page == null || page.page != p || !page.isValid(mText)){
+			page = loadPage(p);
+		}
+		System.arraycopy(pages, 0, pages, 1, i);
+		pages[0] = page;
+		return page;
+	}
+	/* 从页的起始位置开始解码，找出这一页每行的起始位置 */
+	private LinePage loadPage(int p)
+	{
+		final MappedText text = mText;
+		final int length = text.length();
+		final int[] starts = new int[MappedText.LINE_CHECKPOINT];
+		int count = 1;
+		int pos = text.getPageStart(p);
+		starts[0] = pos;
+		char[] buf = RecylePool.obtainCharArray(DECODE_CHARS);
+		while(count < starts.length && pos < length)
+		{
+			int n = Math.min(DECODE_CHARS, length - pos);
+			text.getChars(pos, pos + n, buf, 0);
+			for(int k = 0; k < n && count < starts.length; ++k){
+				if(buf[k] == '\n'){
+					starts[count++] = pos + k + 1;
+				}
+			}
+			pos += n;
+		}
+		RecylePool.recyleCharArray(buf);
+		return new LinePage(p, starts, count, length);
+	}
+
+	/* 一页行的起始位置 */
+	private static final class LinePage
+	{
+		final int page;
+		final int[] starts;
+		final int count;
+		final int length; //解码时文本的长度
+
+		LinePage(int page, int[] starts, int count, int length){
+			this.page = page;
+			this.starts = starts;
+			this.count = count;
+			this.length = length;
+		}
+		/* 行数已满的页不会再变化，否则之后索引的文本中可能有这一页的行 */
+		boolean isValid(MappedText text){
+			return count == starts.length || length == text.length();
+		}
+	}
+}
@@ -0,0 +1,396 @@
+package com.editor.text;
+
+import android.text.*;
+import com.editor.base.array.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 以UTF-8字节存储在堆外的只读文本，读取时才解码，用于很大的文件，有两种打开方式:
+ *
+ * open将文件完整地读入堆外内存(不是映射)，并立即建立索引，之后它与文件无关，文件被修改或截断都不会影响它
+ * Editor.loadText将它交给EditableList.load并行创建文本块，超出BlockPolicy.hotBlocks的文本块直接引用它的一段(参见ColdTextBlock)
+ *
+ * map将文件映射到内存中，只用于只读的查看模式(参见Editor.viewText和MappedLayout)，打开时不读取也不解码任何字节
+ * 之后调用index分段建立索引，已索引的部分立即可以读取，因此length和行数会随着索引增长
+ * 映射的内容不会读入Java堆，堆中只有稀疏的索引，1GB的文件也只需要几MB
+ * 注意映射的文件被其它程序截断后，读取被截断的部分会使进程崩溃(SIGBUS)，因此每次索引前和每次绘制前都会用checkFile检查文件的长度
+ * 发现截断后只读取剩余的字节，之后的字符都读取为替换字符，但检查与读取之间的截断仍然无法避免，所以编辑模式不使用映射
+ *
+ * 索引: 每隔CHECKPOINT_CHARS个字符记录一次字符位置对应的字节位置，读取时从最近的检查点开始解码
+ * 每隔LINE_CHECKPOINT行记录一次行的起始位置，MappedLayout从这里开始解码一页行，只有可见的页才会被解码
+ * 顺序读取时会记住上次解码到的位置，下次直接从那里继续，不用再从检查点开始
+ *
+ * 它可以在多个线程中同时读取，但index只能在一个线程中调用
+ */
+public final class MappedText implements CharSequence, GetChars
+{
+	public static final int LINE_CHECKPOINT = 1024;   //每隔多少行记录一次行的起始位置
+	private static final int CHECKPOINT_CHARS = 4096; //每隔多少个字符记录一个检查点
+	private static final char REPLACEMENT_CHAR = '\uFFFD'; //无效的字节解码为替换字符
+
+	private final ByteBuffer mBytes;  //文件的内容，只使用绝对位置读取
+	private final int mSize;          //字节数
+	private final File mFile;         //映射的文件，读入内存时为null
+	private volatile int mLimit;      //可以安全读取的字节数，映射的文件被截断后会减少
+	private volatile Index mIndex;    //已经建立的索引，每次索引后替换为新的对象
+	private volatile long mLast;      //上次解码到的位置，高32位是字符位置，低32位是字节位置，它们必须一起读写
+
+	/* 索引的进度，只由调用index的线程访问 */
+	private int mScanPos, mScanChars, mNextCheck, mScanLines;
+	private int[] mCheckChars, mCheckBytes, mLineStarts;
+	private int mCheckCount, mLinePages;
+
+	private MappedText(ByteBuffer bytes, File file)
+	{
+		mBytes = bytes;
+		mSize = bytes.limit();
+		mFile = file;
+		mLimit = mSize;
+		final int size = mSize;
+		//跳过UTF-8的BOM
+		mScanPos = size >= 3 && (bytes.get(0) & 0xFF) == 0xEF && (bytes.get(1) & 0xFF) == 0xBB && (bytes.get(2) & 0xFF) == 0xBF ? 3 : 0;
+		mNextCheck = CHECKPOINT_CHARS;
+		mCheckChars = new int[]{0};
+		mCheckBytes = new int[]{mScanPos};
+		mCheckCount = 1;
+		mLineStarts = new int[]{0};
+		mLinePages = 1;
+		publish();
+		mLast = position(0, mScanPos);
+	}
+
+	/* 将文件完整地读入堆外内存并索引，文件不能超过2GB，之后文件的修改不会影响它 */
+	public static MappedText open(File file) throws IOException
+	{
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		ByteBuffer bytes;
+		try{
+			FileChannel channel = input.getChannel();
+			bytes = ByteBuffer.allocateDirect(checkSize(channel.size()));
+			//read可能只读取一部分，需要读到缓冲区满为止
+			while(bytes.hasRemaining()){
+				if(channel.read(bytes) < 0){
+					//文件在读取期间被截断
+					break;
+				}
+			}
+			bytes.flip();
+		}
+		finally{
+			input.close();
+		}
+		MappedText text = new MappedText(bytes, null);
+		while(!text.index(Integer.MAX_VALUE)){}
+		return text;
+	}
+	/**
+	 * 将文件映射到内存中，文件不能超过2GB，返回的文本还没有索引，长度为0
+	 * 只用于只读的查看模式，调用者需要在之后反复调用index，并在读取前调用checkFile
+	 */
+	public static MappedText map(File file) throws IOException
+	{
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try{
+			FileChannel channel = input.getChannel();
+			//映射在关闭文件后仍然有效
+			return new MappedText(channel.map(FileChannel.MapMode.READ_ONLY, 0, checkSize(channel.size())), file);
+		}
+		finally{
+			input.close();
+		}
+	}
+	private static int checkSize(long size) throws IOException
+	{
+		if(size > Integer.MAX_VALUE){
+			throw new IOException("file is too large: " + size + " bytes");
+		}
+		return (int) size;
+	}
+
+	/**
+	 * 继续索引最多maxBytes个字节，返回是否已经索引了所有字节
+	 * 每次索引后新的字符和行立即可以读取，只能在一个线程中调用，映射的文件被截断时抛出IOException
+	 */
+	public boolean index(int maxBytes) throws IOException
+	{
+		if(!checkFile()){
+			throw new IOException("file was truncated while indexing");
+		}
+		final ByteBuffer bytes = mBytes;
+		final int size = mSize;
+		final int stop = (int) Math.min(size, (long) mScanPos + maxBytes);
+		int pos = mScanPos;
+		int chars = mScanChars;
+		int lines = mScanLines;
+		while(pos < stop)
+		{
+			if(chars >= mNextCheck){
+				mCheckChars = GrowingArrayUtils.append(mCheckChars, mCheckCount, chars);
+				mCheckBytes = GrowingArrayUtils.append(mCheckBytes, mCheckCount, pos);
+				mCheckCount++;
+				mNextCheck = chars + CHECKPOINT_CHARS;
+			}
+			final int b = bytes.get(pos);
+			if(b >= 0){
+				//ASCII字符，换行符只会出现在这里
+				pos++;
+				chars++;
+				if(b == '\n' && ++lines % LINE_CHECKPOINT == 0){
+					mLineStarts = GrowingArrayUtils.append(mLineStarts, mLinePages, chars);
+					mLinePages++;
+				}
+				continue;
+			}
+			//序列可能越过stop，但不会越过size
+			final int len = sequenceLength(bytes, pos, size);
+			pos += len;
+			chars += len == 4 ? 2 : 1;
+			if(chars < 0){
+				throw new IOException("text is too long");
+			}
+		}
+		mScanPos = pos;
+		mScanChars = chars;
+		mScanLines = lines;
+		publish();
+		return pos >= size;
+	}
+	/* 数组只会在已发布的元素之后追加或者被替换，因此读取已发布的元素不受之后索引的影响 */
+	private void publish(){
+		mIndex = new Index(mCheckChars, mCheckBytes, mCheckCount, mLineStarts, mLinePages, mScanLines, mScanChars, mScanPos >= mSize);
+	}
+	/* 是否已经索引了所有字节 */
+	public boolean isIndexed(){
+		return mIndex.done;
+	}
+
+	/**
+	 * 检查映射的文件是否被截断，返回文件是否完整
+	 * 被截断后只读取剩余的字节，它不能阻止检查之后的截断，因此应该在每次绘制前调用
+	 */
+	public boolean checkFile()
+	{
+		if(mFile == null){
+			return true;
+		}
+		long length = mFile.length();
+		if(length < mLimit){
+			mLimit = (int) length;
+		}
+		return mLimit == mSize;
+	}
+
+	public int length(){
+		return mIndex.length;
+	}
+	/* 返回已索引的行数，行数是换行符数量加1 */
+	public int getLineCount(){
+		return mIndex.lineCount + 1;
+	}
+	/* 返回第page*LINE_CHECKPOINT行的起始位置，page不能超过(getLineCount()-1)/LINE_CHECKPOINT */
+	public int getPageStart(int page){
+		return mIndex.lineStarts[page];
+	}
+	/* 返回offset所在的行位于第几页，每页有LINE_CHECKPOINT行 */
+	public int getPageForOffset(int offset){
+		Index index = mIndex;
+		return ArrayUtils.findRangeContainingIndex(index.lineStarts, index.linePages, offset);
+	}
+
+	public char charAt(int index)
+	{
+		final int length = length();
+		if (index < 0) {
+			throw new IndexOutOfBoundsException("charAt: " + index + " < 0");
+		} else if (index >= length) {
+			throw new IndexOutOfBoundsException("charAt: " + index + " >= length " + length);
+		}
+		//跳过index之前的字符，停在index所在的字符上
+		final long from = seek(index);
+		final ByteBuffer bytes = mBytes;
+		final int size = mLimit;
+		int chars = (int) (from >>> 32);
+		int pos = (int) from;
+		int len;
+		while(true)
+		{
+			if(pos >= size){
+				//映射的文件被截断
+				return REPLACEMENT_CHAR;
+			}
+			len = bytes.get(pos) >= 0 ? 1 : sequenceLength(bytes, pos, size);
+			int width = len == 4 ? 2 : 1;
+			if(chars + width > index){
+				break;
+			}
+			chars += width;
+			pos += len;
+		}
+		//记录这个字符之前的位置，读取下一个字符时从这里继续
+		mLast = position(chars, pos);
+		final int b = bytes.get(pos);
+		if(len == 1){
+			return b >= 0 ? (char) b : REPLACEMENT_CHAR;
+		}
+		if(len < 4){
+			return (char) (len == 2 ? (b & 0x1F) << 6 | (bytes.get(pos+1) & 0x3F)
+				: (b & 0x0F) << 12 | (bytes.get(pos+1) & 0x3F) << 6 | (bytes.get(pos+2) & 0x3F));
+		}
+		int c = ((b & 0x07) << 18 | (bytes.get(pos+1) & 0x3F) << 12 | (bytes.get(pos+2) & 0x3F) << 6 | (bytes.get(pos+3) & 0x3F)) - 0x10000;
+		return index == chars ? (char) (0xD800 + (c >>> 10)) : (char) (0xDC00 + (c & 0x3FF));
+	}
+	/* 从start之前最近的检查点或上次结束的位置开始解码，将start~end的字符拷贝到dest中 */
+	public void getChars(int start, int end, char[] dest, int destoff)
+	{
+		checkRange("getChars", start, end);
+		if(start == end){
+			return;
+		}
+		final long from = seek(start);
+		int chars = (int) (from >>> 32);
+		int pos = (int) from;
+		final ByteBuffer bytes = mBytes;
+		final int size = mLimit;
+		while(chars < end)
+		{
+			if(pos >= size){
+				//映射的文件被截断，之后的字符都读取为替换字符
+				for(int k = Math.max(chars, start); k < end; ++k){
+					dest[destoff + k - start] = REPLACEMENT_CHAR;
+				}
+				return;
+			}
+			final int b = bytes.get(pos);
+			if(b >= 0){
+				if(chars >= start){
+					dest[destoff + chars - start] = (char) b;
+				}
+				pos++;
+				chars++;
+				continue;
+			}
+			final int len = sequenceLength(bytes, pos, size);
+			if(len == 1){
+				if(chars >= start){
+					dest[destoff + chars - start] = REPLACEMENT_CHAR;
+				}
+				chars++;
+			}
+			else if(len < 4){
+				int c = len == 2 ? (b & 0x1F) << 6 | (bytes.get(pos+1) & 0x3F)
+					: (b & 0x0F) << 12 | (bytes.get(pos+1) & 0x3F) << 6 | (bytes.get(pos+2) & 0x3F);
+				if(chars >= start){
+					dest[destoff + chars - start] = (char) c;
+				}
+				chars++;
+			}
+			else{
+				//四字节的字符解码为两个代理字符，start和end可能正好在它们中间
+				int c = ((b & 0x07) << 18 | (bytes.get(pos+1) & 0x3F) << 12 | (bytes.get(pos+2) & 0x3F) << 6 | (bytes.get(pos+3) & 0x3F)) - 0x10000;
+				if(chars >= start){
+					dest[destoff + chars - start] = (char) (0xD800 + (c >>> 10));
+				}
+				if(chars + 1 >= start && chars + 1 < end){
+					dest[destoff + chars + 1 - start] = (char) (0xDC00 + (c & 0x3FF));
+				}
+				chars += 2;
+			}
+			pos += len;
+		}
+		//只记录完整字符之后的位置，下次可以从这里继续
+		if(chars == end){
+			mLast = position(chars, pos);
+		}
+	}
+	public CharSequence subSequence(int start, int end)
+	{
+		checkRange("subSequence", start, end);
+		char[] buf = new char[end - start];
+		getChars(start, end, buf, 0);
+		return new String(buf);
+	}
+	public String toString(){
+		return subSequence(0, length()).toString();
+	}
+
+	/**
+	 * 返回pos处的UTF-8序列的字节数，不完整或无效的序列返回1，它会解码为一个替换字符
+	 * 与标准的解码器不同，这里不检查过长编码和代理区的字符，它们与有效的字符一样解码
+	 */
+	private static int sequenceLength(ByteBuffer bytes, int pos, int size)
+	{
+		final int b = bytes.get(pos) & 0xFF;
+		int len;
+		if((b & 0xE0) == 0xC0){
+			len = 2;
+		}else if((b & 0xF0) == 0xE0){
+			len = 3;
+		}else if((b & 0xF8) == 0xF0){
+			len = 4;
+		}else{
+			return 1;
+		}
+		if(pos + len > size){
+			return 1;
+		}
+		for(int k = 1; k < len; ++k){
+			if((bytes.get(pos + k) & 0xC0) != 0x80){
+				return 1;
+			}
+		}
+		return len;
+	}
+
+	private void checkRange(final String operation, int start, int end)
+	{
+		int length = length();
+		if (start < 0 || end < start || end > length) {
+			throw new IndexOutOfBoundsException(operation + " (" + start + " ... " + end + ") out of length " + length);
+		}
+	}
+
+	/* 返回开始解码的位置，它是index之前最近的检查点，或者上次解码到的位置(如果它更近) */
+	private long seek(int index)
+	{
+		long last = mLast;
+		Index idx = mIndex;
+		int i = ArrayUtils.findRangeContainingIndex(idx.checkChars, idx.checkCount, index);
+		int lastChars = (int) (last >>> 32);
+		if(lastChars <= index && lastChars >= idx.checkChars[i]){
+			return last;
+		}
+		return position(idx.checkChars[i], idx.checkBytes[i]);
+	}
+	/* 字符位置和字节位置打包在一个long中，读写volatile long是原子的，不用为每次读取创建对象 */
+	private static long position(int chars, int bytes){
+		return (long) chars << 32 | (bytes & 0xFFFFFFFFL);
+	}
+
+	/* 某次索引后的状态，它是不可变的 */
+	private static final class Index
+	{
+		final int[] checkChars;   //每个检查点的字符位置，检查点总是在一个完整的字符之前
+		final int[] checkBytes;   //每个检查点的字节位置
+		final int checkCount;
+		final int[] lineStarts;   //第k个元素是第k*LINE_CHECKPOINT行的起始位置
+		final int linePages;
+		final int lineCount;      //换行符的个数
+		final int length;         //已索引的字符个数
+		final boolean done;
+
+		Index(int[] checkChars, int[] checkBytes, int checkCount, int[] lineStarts, int linePages, int lineCount, int length, boolean done){
+			this.checkChars = checkChars;
+			this.checkBytes = checkBytes;
+			this.checkCount = checkCount;
+			this.lineStarts = lineStarts;
+			this.linePages = linePages;
+			this.lineCount = lineCount;
+			this.length = length;
+			this.done = done;
+		}
+	}
+}
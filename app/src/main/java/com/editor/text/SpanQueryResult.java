@@ -0,0 +1,72 @@
+package com.editor.text;
+
+import com.editor.base.array.*;
+
+/**
+ * 可以反复使用的span查询结果，存储了span和它们在文本中的起始位置，末尾位置和标志
+ * 与getSpans不同，每次查询不会创建新的数组，数组只在容量不够时增长，因此每帧绘制都可以使用同一个结果
+ * span的顺序与getSpans相同，也就是按优先级和插入顺序排列
+ *
+ * 使用完后不需要清空，下次查询会覆盖之前的结果，但如果长时间不再使用，应该调用clear以免持有span
+ */
+public final class SpanQueryResult
+{
+	private Object[] mSpans = EmptyArray.OBJECT;
+	private int[] mStarts = EmptyArray.INT;
+	private int[] mEnds = EmptyArray.INT;
+	private int[] mFlags = EmptyArray.INT;
+	private int mCount;
+
+	/* 查询到的span个数 */
+	public int size(){
+		return mCount;
+	}
+	public Object getSpan(int i){
+		return mSpans[i];
+	}
+	public int getSpanStart(int i){
+		return mStarts[i];
+	}
+	public int getSpanEnd(int i){
+		return mEnds[i];
+	}
+	public int getSpanFlags(int i){
+		return mFlags[i];
+	}
+
+	/* 清空结果，并释放对span的引用 */
+	public void clear()
+	{
+		for(int i = 0; i < mCount; ++i){
+			mSpans[i] = null;
+		}
+		mCount = 0;
+	}
+
+	/* 开始一次新的查询，保证可以容纳count个span */
+	void reset(int count)
+	{
+		clear();
+		if(count > mSpans.length){
+			int size = GrowingArrayUtils.growSize(count);
+			mSpans = new Object[size];
+			mStarts = new int[size];
+			mEnds = new int[size];
+			mFlags = new int[size];
+		}
+	}
+	/* 存储span的缓冲区，可以直接在其中排序 */
+	Object[] spans(){
+		return mSpans;
+	}
+	void set(int i, Object span, int start, int end, int flags)
+	{
+		mSpans[i] = span;
+		mStarts[i] = start;
+		mEnds[i] = end;
+		mFlags[i] = flags;
+	}
+	void setCount(int count){
+		mCount = count;
+	}
+}
@@ -0,0 +1,550 @@
+package com.editor.text;
+
+import android.text.*;
+import com.editor.base.array.*;
+import java.lang.reflect.Array;
+import java.util.IdentityHashMap;
+
+/**
+ * 全局的span存储，EditableList可以选择用它代替文本块中的span
+ * 所有span只存储一份，以列的形式存储在几个基本类型数组中(起始位置，末尾位置，标志，插入顺序)，
+ * 这样一个跨越多个文本块的span不会在每个文本块中都存一份，修改文本时也不用修正span在文本块中的范围
+ *
+ * 所有span按起始位置排序，并以数组下标构成一颗隐式的平衡二叉树(与Android的SpannableStringBuilder相同)，
+ * 每个节点额外记录了子树中末尾位置最大的span，用于在getSpans和nextSpanTransition中跳过不可能重叠的子树
+ *
+ * 存储的位置并不是文本中的位置，而是像间隙缓冲区一样，在mGapStart处有一个长度为mGapLength的虚拟间隙，
+ * 在间隙之后的位置都加上了mGapLength，这样在间隙处插入或删除文本时，只需修改间隙本身，而不用偏移之后所有span的位置
+ * 只有在其它位置修改文本时，才需要将间隙移动过去
+ *
+ * 这里只存储SPAN_EXCLUSIVE_EXCLUSIVE的span(参见EditableList.isInvalidSpan)，
+ * 它的起始位置在间隙处时总存储在间隙之后，末尾位置在间隙处时总存储在间隙之前，
+ * 因此在间隙处插入文本时，起始位置自然地向后移动，而末尾位置保持不变
+ */
+final class SpanStore
+{
+	private int mSpanCount;       //span的个数
+	private int mSpanInsertCount; //span插入计数器
+	private Object[] mSpans;      //所有的span，按起始位置排序
+	private int[] mSpanStarts;    //span的起始位置(包含间隙)
+	private int[] mSpanEnds;      //span的末尾位置(包含间隙)
+	private int[] mSpanFlags;     //span的标志
+	private int[] mSpanOrder;     //span的插入顺序
+	private int[] mSpanMax;       //树中每个节点的子树中末尾位置最大的span的下标，没有span则为-1
+	private IdentityHashMap<Object,Integer> mIndexOfSpan; //span在数组中的下标
+
+	private int mGapStart;  //间隙的起始位置
+	private int mGapLength; //间隙的长度
+
+	private int mLowWaterMark;    //记录了从哪里开始需要重新排序，Integer.MAX_VALUE表示不需要排序
+	private int mLowIndexMark;    //记录了mIndexOfSpan应该从哪里开始刷新
+	private boolean mSpanMaxValid; //mSpanMax是否正确
+
+	private static final int GAP_LENGTH = 1 << 30; //虚拟间隙的长度，文本的长度加上它不能超出int的范围
+
+	SpanStore()
+	{
+		mSpans = EmptyArray.OBJECT;
+		mSpanStarts = EmptyArray.INT;
+		mSpanEnds = EmptyArray.INT;
+		mSpanFlags = EmptyArray.INT;
+		mSpanOrder = EmptyArray.INT;
+		mSpanMax = EmptyArray.INT;
+		mIndexOfSpan = new IdentityHashMap<>();
+		mGapStart = 0;
+		mGapLength = GAP_LENGTH;
+		mLowWaterMark = Integer.MAX_VALUE;
+		mLowIndexMark = Integer.MAX_VALUE;
+		mSpanMaxValid = true;
+	}
+
+	int getSpanCount(){
+		return mSpanCount;
+	}
+
+	/* 清空所有span */
+	void clear()
+	{
+		for(int i = 0; i < mSpanCount; ++i){
+			mSpans[i] = null;
+		}
+		mSpanCount = 0;
+		mSpanInsertCount = 0;
+		mIndexOfSpan.clear();
+		mLowWaterMark = Integer.MAX_VALUE;
+		mLowIndexMark = Integer.MAX_VALUE;
+		mSpanMaxValid = true;
+	}
+
+	/**
+	 * 设置span，调用者需要保证span是有效的
+	 * 新的span直接添加到末尾，在之后需要时才排序，因此按顺序批量添加span时，几乎不需要移动元素
+	 * 如果已有该span，仅修改它的位置和标志，保留它的插入顺序
+	 */
+	void setSpan(Object span, int start, int end, int flags)
+	{
+		//mIndexOfSpan中的下标可能还没有刷新，但是span是否存在总是正确的
+		if(mIndexOfSpan.containsKey(span))
+		{
+			refreshIndex();
+			int i = mIndexOfSpan.get(span);
+			int rawStart = toRawStart(start);
+			if(mSpanStarts[i] != rawStart){
+				//起始位置改变了，需要从此处重新排序
+				mSpanStarts[i] = rawStart;
+				invalidateWaterMark(i);
+			}
+			mSpanEnds[i] = toRawEnd(end);
+			mSpanFlags[i] = flags;
+			mSpanMaxValid = false;
+			return;
+		}
+
+		final int i = mSpanCount;
+		mSpans = GrowingArrayUtils.append(mSpans, i, span);
+		mSpanStarts = GrowingArrayUtils.append(mSpanStarts, i, toRawStart(start));
+		mSpanEnds = GrowingArrayUtils.append(mSpanEnds, i, toRawEnd(end));
+		mSpanFlags = GrowingArrayUtils.append(mSpanFlags, i, flags);
+		mSpanOrder = GrowingArrayUtils.append(mSpanOrder, i, mSpanInsertCount++);
+		mSpanCount++;
+		//直接记录新span的下标，如果之后排序移动了它，会重新刷新
+		mIndexOfSpan.put(span, i);
+		if(i > 0 && mSpanStarts[i] < mSpanStarts[i-1]){
+			invalidateWaterMark(i);
+		}
+		mSpanMaxValid = false;
+	}
+
+	/* 移除span */
+	void removeSpan(Object span)
+	{
+		refreshIndex();
+		Integer index = mIndexOfSpan.remove(span);
+		if(index != null){
+			removeSpanAt(index);
+		}
+	}
+
+	private void removeSpanAt(int i)
+	{
+		final int count = mSpanCount - i - 1;
+		System.arraycopy(mSpans, i+1, mSpans, i, count);
+		System.arraycopy(mSpanStarts, i+1, mSpanStarts, i, count);
+		System.arraycopy(mSpanEnds, i+1, mSpanEnds, i, count);
+		System.arraycopy(mSpanFlags, i+1, mSpanFlags, i, count);
+		System.arraycopy(mSpanOrder, i+1, mSpanOrder, i, count);
+		mSpanCount--;
+		mSpans[mSpanCount] = null;
+		//之后的span都向前移动了一步
+		invalidateIndexMark(i);
+		mSpanMaxValid = false;
+	}
+
+	int getSpanStart(Object span)
+	{
+		refreshIndex();
+		Integer index = mIndexOfSpan.get(span);
+		return index == null ? -1 : resolveGap(mSpanStarts[index]);
+	}
+
+	int getSpanEnd(Object span)
+	{
+		refreshIndex();
+		Integer index = mIndexOfSpan.get(span);
+		return index == null ? -1 : resolveGap(mSpanEnds[index]);
+	}
+
+	int getSpanFlags(Object span)
+	{
+		refreshIndex();
+		Integer index = mIndexOfSpan.get(span);
+		return index == null ? 0 : mSpanFlags[index];
+	}
+
+	/**
+	 * 文本中start~end之间的文本被替换为了长度为after的文本，修正所有span的位置
+	 * 与EditableList的行为相同，先删除后插入:
+	 * 删除范围内的起始位置和末尾位置都会移动到start，完全处于删除范围内的span会被移除
+	 * 然后在start处插入，起始位置在start处的span向后移动，末尾位置在start处的span保持不变
+	 */
+	void replace(int start, int end, int after)
+	{
+		//移除span会改变下标，因此需要先排序
+		sortSpans();
+		moveGapTo(end);
+
+		if(end > start)
+		{
+			//起始位置在删除范围内的span，移动到间隙之后，末尾位置在删除范围内的span，移动到start
+			//排序和最大值不受影响，因为它们只是挤在了一起，并没有改变相对顺序
+			final int gapEnd = mGapStart + mGapLength;
+			boolean collapsed = false;
+			for(int i = 0; i < mSpanCount; ++i)
+			{
+				int spanStart = mSpanStarts[i];
+				int spanEnd = mSpanEnds[i];
+				if(spanStart >= start && spanStart < end){
+					mSpanStarts[i] = spanStart = gapEnd;
+				}
+				if(spanEnd > start && spanEnd <= end){
+					mSpanEnds[i] = spanEnd = start;
+				}
+				if(spanStart == gapEnd && spanEnd == start){
+					collapsed = true;
+				}
+			}
+			//删除后扩大间隙
+			mGapLength += end - start;
+			mGapStart = start;
+			if(collapsed){
+				removeCollapsedSpans();
+			}
+		}
+
+		if(after > 0)
+		{
+			if(mGapLength <= after){
+				growGap();
+			}
+			//插入文本后缩小间隙
+			mGapStart += after;
+			mGapLength -= after;
+		}
+	}
+
+	/* 移除所有长度为0的span */
+	private void removeCollapsedSpans()
+	{
+		int j = 0;
+		for(int i = 0; i < mSpanCount; ++i)
+		{
+			if(resolveGap(mSpanStarts[i]) == resolveGap(mSpanEnds[i])){
+				mIndexOfSpan.remove(mSpans[i]);
+				invalidateIndexMark(j);
+				continue;
+			}
+			if(i != j){
+				mSpans[j] = mSpans[i];
+				mSpanStarts[j] = mSpanStarts[i];
+				mSpanEnds[j] = mSpanEnds[i];
+				mSpanFlags[j] = mSpanFlags[i];
+				mSpanOrder[j] = mSpanOrder[i];
+			}
+			++j;
+		}
+		for(int i = j; i < mSpanCount; ++i){
+			mSpans[i] = null;
+		}
+		mSpanCount = j;
+		mSpanMaxValid = false;
+	}
+
+	/**
+	 * 将间隙移动到指定位置，在间隙处的起始位置存储在间隙之后，末尾位置存储在间隙之前
+	 * 只有处于新旧间隙之间的位置会改变，由于位置之间的相对顺序不变，所以不需要重新排序，也不需要重新计算最大值
+	 */
+	private void moveGapTo(int where)
+	{
+		if(where == mGapStart){
+			return;
+		}
+		final int low = Math.min(where, mGapStart);
+		final int high = Math.max(where, mGapStart) + mGapLength;
+		for(int i = 0; i < mSpanCount; ++i)
+		{
+			int spanStart = mSpanStarts[i];
+			if(spanStart >= low && spanStart <= high){
+				spanStart = resolveGap(spanStart);
+				mSpanStarts[i] = spanStart >= where ? spanStart + mGapLength : spanStart;
+			}
+			int spanEnd = mSpanEnds[i];
+			if(spanEnd >= low && spanEnd <= high){
+				spanEnd = resolveGap(spanEnd);
+				mSpanEnds[i] = spanEnd > where ? spanEnd + mGapLength : spanEnd;
+			}
+		}
+		mGapStart = where;
+	}
+
+	/* 间隙不够时，将它恢复到GAP_LENGTH，间隙之后的所有位置都需要向后偏移 */
+	private void growGap()
+	{
+		final int delta = GAP_LENGTH - mGapLength;
+		final int gapEnd = mGapStart + mGapLength;
+		for(int i = 0; i < mSpanCount; ++i)
+		{
+			if(mSpanStarts[i] >= gapEnd){
+				mSpanStarts[i] += delta;
+			}
+			if(mSpanEnds[i] >= gapEnd){
+				mSpanEnds[i] += delta;
+			}
+		}
+		mGapLength = GAP_LENGTH;
+	}
+
+	private int resolveGap(int i){
+		return i > mGapStart ? i - mGapLength : i;
+	}
+	private int toRawStart(int start){
+		return start >= mGapStart ? start + mGapLength : start;
+	}
+	private int toRawEnd(int end){
+		return end > mGapStart ? end + mGapLength : end;
+	}
+
+	/**
+	 * 获取与指定范围重叠的指定类型的span，并按优先级和插入顺序排序
+	 * 重叠的规则与SpannableStringBuilder相同，范围不为单点时，不包含仅在两端相接的span
+	 */
+	<T> T[] getSpans(int queryStart, int queryEnd, Class<T> kind)
+	{
+		if(kind == null){
+			return (T[]) EmptyArray.OBJECT;
+		}
+		if(mSpanCount == 0 || queryStart > queryEnd){
+			return EmptyArray.emptyArray(kind);
+		}
+		restoreInvariants();
+
+		//先收集所有重叠的span的下标，然后再创建数组
+		final int[] indices = SpanUtils.obtain(mSpanCount);
+		final int count = getSpansRec(queryStart, queryEnd, kind, treeRoot(), indices, 0);
+		if(count == 0){
+			SpanUtils.recycle(indices);
+			return EmptyArray.emptyArray(kind);
+		}
+		final T[] spans = (T[]) Array.newInstance(kind, count);
+		final int[] prioSortBuffer = SpanUtils.obtain(count);
+		final int[] orderSortBuffer = SpanUtils.obtain(count);
+		for(int k = 0; k < count; ++k){
+			final int i = indices[k];
+			spans[k] = (T) mSpans[i];
+			prioSortBuffer[k] = mSpanFlags[i] & Spanned.SPAN_PRIORITY;
+			orderSortBuffer[k] = mSpanOrder[i];
+		}
+		SpanUtils.sort(spans, prioSortBuffer, orderSortBuffer);
+		SpanUtils.recycle(indices);
+		SpanUtils.recycle(prioSortBuffer);
+		SpanUtils.recycle(orderSortBuffer);
+		return spans;
+	}
+
+	/* 与getSpans相同，但将结果写入out中，不会创建新的数组 */
+	int getSpans(int queryStart, int queryEnd, Class kind, SpanQueryResult out)
+	{
+		if(kind == null || mSpanCount == 0 || queryStart > queryEnd){
+			out.reset(0);
+			return 0;
+		}
+		restoreInvariants();
+
+		final int[] indices = SpanUtils.obtain(mSpanCount);
+		final int count = getSpansRec(queryStart, queryEnd, kind, treeRoot(), indices, 0);
+		out.reset(count);
+		final Object[] spans = out.spans();
+		final int[] prioSortBuffer = SpanUtils.obtain(count);
+		final int[] orderSortBuffer = SpanUtils.obtain(count);
+		for(int k = 0; k < count; ++k){
+			final int i = indices[k];
+			spans[k] = mSpans[i];
+			prioSortBuffer[k] = mSpanFlags[i] & Spanned.SPAN_PRIORITY;
+			orderSortBuffer[k] = mSpanOrder[i];
+		}
+		SpanUtils.sort(spans, count, prioSortBuffer, orderSortBuffer);
+		//排序后再查找每个span的位置
+		refreshIndex();
+		for(int k = 0; k < count; ++k){
+			final int i = mIndexOfSpan.get(spans[k]);
+			out.set(k, spans[k], resolveGap(mSpanStarts[i]), resolveGap(mSpanEnds[i]), mSpanFlags[i]);
+		}
+		out.setCount(count);
+		SpanUtils.recycle(indices);
+		SpanUtils.recycle(prioSortBuffer);
+		SpanUtils.recycle(orderSortBuffer);
+		return count;
+	}
+
+	private int getSpansRec(int queryStart, int queryEnd, Class kind, int i, int[] indices, int count)
+	{
+		if((i & 1) != 0)
+		{
+			//如果左子树中最大的末尾位置都不能到达queryStart，那么左子树中不可能有重叠的span
+			int left = leftChild(i);
+			int maxIndex = mSpanMax[left];
+			if(maxIndex >= 0 && resolveGap(mSpanEnds[maxIndex]) >= queryStart){
+				count = getSpansRec(queryStart, queryEnd, kind, left, indices, count);
+			}
+		}
+		if(i < mSpanCount)
+		{
+			//如果当前span的起始位置已经超过queryEnd，那么右子树的起始位置也全部超过了
+			int spanStart = resolveGap(mSpanStarts[i]);
+			if(spanStart <= queryEnd)
+			{
+				int spanEnd = resolveGap(mSpanEnds[i]);
+				if(spanEnd >= queryStart && (queryStart == queryEnd || (spanStart != queryEnd && spanEnd != queryStart))
+				   && (kind == Object.class || kind.isInstance(mSpans[i]))){
+					indices[count++] = i;
+				}
+				if((i & 1) != 0){
+					count = getSpansRec(queryStart, queryEnd, kind, rightChild(i), indices, count);
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * 返回在start之后但在limit之前的下一个偏移量，此偏移量是距离start最近的一个span的端点
+	 * 如果在start ~ limit之间没有一个span的端点，则返回limit
+	 */
+	int nextSpanTransition(int start, int limit, Class kind)
+	{
+		if(mSpanCount == 0){
+			return limit;
+		}
+		if(kind == null){
+			kind = Object.class;
+		}
+		restoreInvariants();
+		return nextSpanTransitionRec(start, limit, kind, treeRoot());
+	}
+
+	private int nextSpanTransitionRec(int start, int limit, Class kind, int i)
+	{
+		if((i & 1) != 0)
+		{
+			int left = leftChild(i);
+			int maxIndex = mSpanMax[left];
+			if(maxIndex >= 0 && resolveGap(mSpanEnds[maxIndex]) > start){
+				limit = nextSpanTransitionRec(start, limit, kind, left);
+			}
+		}
+		if(i < mSpanCount)
+		{
+			int spanStart = resolveGap(mSpanStarts[i]);
+			int spanEnd = resolveGap(mSpanEnds[i]);
+			if(kind == Object.class || kind.isInstance(mSpans[i]))
+			{
+				if(spanStart > start && spanStart < limit){
+					limit = spanStart;
+				}
+				if(spanEnd > start && spanEnd < limit){
+					limit = spanEnd;
+				}
+			}
+			if(spanStart < limit && (i & 1) != 0){
+				limit = nextSpanTransitionRec(start, limit, kind, rightChild(i));
+			}
+		}
+		return limit;
+	}
+
+	/* 树的根节点，是不超过mSpanCount的最大的2的幂减1 */
+	private int treeRoot(){
+		return Integer.highestOneBit(mSpanCount) - 1;
+	}
+	private static int leftChild(int i){
+		return i - (((i + 1) & ~i) >> 1);
+	}
+	private static int rightChild(int i){
+		return i + (((i + 1) & ~i) >> 1);
+	}
+
+	/* 计算子树中末尾位置最大的span的下标，由于位置的相对顺序不受间隙影响，所以直接比较存储的位置 */
+	private int calcMax(int i)
+	{
+		int max = -1;
+		if((i & 1) != 0){
+			max = calcMax(leftChild(i));
+		}
+		if(i < mSpanCount)
+		{
+			if(max < 0 || mSpanEnds[i] > mSpanEnds[max]){
+				max = i;
+			}
+			if((i & 1) != 0){
+				int right = calcMax(rightChild(i));
+				if(right >= 0 && mSpanEnds[right] > mSpanEnds[max]){
+					max = right;
+				}
+			}
+		}
+		mSpanMax[i] = max;
+		return max;
+	}
+
+	/* 在查询之前，恢复排序，最大值和下标，之后没有修改时，查询不会再修改任何数据 */
+	void restoreInvariants()
+	{
+		sortSpans();
+		if(!mSpanMaxValid)
+		{
+			//树中的节点可能超出mSpanCount，最大为根节点的两倍
+			final int size = Integer.highestOneBit(mSpanCount) * 2;
+			if(mSpanMax.length < size){
+				mSpanMax = ArrayUtils.newUnpaddedIntArray(size);
+			}
+			if(mSpanCount > 0){
+				calcMax(treeRoot());
+			}
+			mSpanMaxValid = true;
+		}
+		refreshIndex();
+	}
+
+	/* 如果有新添加或移动的span，从mLowWaterMark开始重新排序 */
+	private void sortSpans()
+	{
+		if(mLowWaterMark != Integer.MAX_VALUE)
+		{
+			//从mLowWaterMark开始插入排序，新的span大多是按顺序添加的，因此几乎不需要移动
+			for(int i = Math.max(mLowWaterMark, 1); i < mSpanCount; ++i)
+			{
+				final int start = mSpanStarts[i];
+				if(start >= mSpanStarts[i-1]){
+					continue;
+				}
+				final Object span = mSpans[i];
+				final int end = mSpanEnds[i];
+				final int flags = mSpanFlags[i];
+				final int order = mSpanOrder[i];
+				int j = i;
+				do{
+					mSpans[j] = mSpans[j-1];
+					mSpanStarts[j] = mSpanStarts[j-1];
+					mSpanEnds[j] = mSpanEnds[j-1];
+					mSpanFlags[j] = mSpanFlags[j-1];
+					mSpanOrder[j] = mSpanOrder[j-1];
+					--j;
+				}while(j > 0 && start < mSpanStarts[j-1]);
+				mSpans[j] = span;
+				mSpanStarts[j] = start;
+				mSpanEnds[j] = end;
+				mSpanFlags[j] = flags;
+				mSpanOrder[j] = order;
+				invalidateIndexMark(j);
+			}
+			mLowWaterMark = Integer.MAX_VALUE;
+			mSpanMaxValid = false;
+		}
+	}
+
+	/* 在需要获取span的下标之前，从mLowIndexMark开始刷新mIndexOfSpan，排序会改变下标，因此需要先排序 */
+	private void refreshIndex()
+	{
+		sortSpans();
+		for(int i = mLowIndexMark; i < mSpanCount; ++i){
+			mIndexOfSpan.put(mSpans[i], i);
+		}
+		mLowIndexMark = Integer.MAX_VALUE;
+	}
+
+	private void invalidateWaterMark(int i){
+		mLowWaterMark = Math.min(mLowWaterMark, i);
+	}
+	private void invalidateIndexMark(int i){
+		mLowIndexMark = Math.min(mLowIndexMark, i);
+	}
+}
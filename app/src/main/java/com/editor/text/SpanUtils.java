@@ -55,6 +55,25 @@ public class SpanUtils
 		return resultList.toArray(result);
 	}
 
+	/**
+	 * 获取与指定范围重叠的span和它们的位置，写入out中，返回span的个数
+	 * text是EditableList时不会创建结果数组，否则与getSpans相同，只是结果存储在out中
+	 */
+	public static int getSpans(Spanned text, int start, int end, Class kind, SpanQueryResult out)
+	{
+		if(text instanceof EditableList){
+			return ((EditableList)text).getSpans(start, end, kind, out);
+		}
+		Object[] spans = text.getSpans(start, end, kind);
+		out.reset(spans.length);
+		for(int i = 0; i < spans.length; ++i){
+			Object span = spans[i];
+			out.set(i, span, text.getSpanStart(span), text.getSpanEnd(span), text.getSpanFlags(span));
+		}
+		out.setCount(spans.length);
+		return spans.length;
+	}
+
 	/* 获取临时排序数组 */
 	static int[] obtain(final int elementCount)
     {
@@ -114,9 +133,12 @@ public class SpanUtils
 	 * @param insertionOrder对象类型的插入顺序。
 	 * @param <T> 该方法拷贝于Android源码
 	 */
-    static final <T> void sort(T[] array, int[] priority, int[] insertionOrder) 
+    static final <T> void sort(T[] array, int[] priority, int[] insertionOrder){
+		sort(array, array.length, priority, insertionOrder);
+	}
+	/* 仅排序数组的前size个元素 */
+    static final <T> void sort(T[] array, int size, int[] priority, int[] insertionOrder) 
     {
-		final int size = array.length;
         //从最后一个节点的父节点开始，向前将所有节点排序，构建一个大顶堆
         for (int i = size / 2 - 1; i >= 0; i--) {
             siftDown(i, array, size, priority, insertionOrder);
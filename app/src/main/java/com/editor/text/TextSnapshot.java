@@ -0,0 +1,87 @@
+package com.editor.text;
+
+import android.text.*;
+import com.editor.base.array.*;
+
+/**
+ * EditableList某个版本的不可变快照，它只包含文本，不包含span
+ *
+ * 快照与EditableList共享创建时的文本块，EditableList在之后修改某个共享的文本块前，会先拷贝一份新的文本块再修改(写时复制)，
+ * 因此快照中的文本块永远不会再被修改，可以在任意线程中读取，而不用加锁或拷贝整个文本
+ * 创建快照的开销只与文本块的个数有关，之后每次修改最多拷贝一个文本块
+ *
+ * 注意快照必须在修改EditableList的线程中创建，之后才能交给其它线程
+ */
+public final class TextSnapshot implements CharSequence, GetChars
+{
+	private final Editable[] mBlocks; //共享的文本块
+	private final int[] mBlockStarts; //每个文本块的起始位置
+	private final int mBlockSize;
+	private final int mVersion;       //创建快照时，EditableList的修改次数
+	private final int mStart;         //子序列在整个快照中的起始位置
+	private final int mLength;
+
+	TextSnapshot(Editable[] blocks, int[] blockStarts, int blockSize, int length, int version){
+		this(blocks, blockStarts, blockSize, version, 0, length);
+	}
+	private TextSnapshot(Editable[] blocks, int[] blockStarts, int blockSize, int version, int start, int length)
+	{
+		mBlocks = blocks;
+		mBlockStarts = blockStarts;
+		mBlockSize = blockSize;
+		mVersion = version;
+		mStart = start;
+		mLength = length;
+	}
+
+	/* 快照的版本，相同版本的快照文本相同 */
+	public int getVersion(){
+		return mVersion;
+	}
+
+	public int length(){
+		return mLength;
+	}
+	public char charAt(int index)
+	{
+		if (index < 0 || index >= mLength) {
+			throw new IndexOutOfBoundsException("charAt: " + index + " out of length " + mLength);
+		}
+		index += mStart;
+		int i = ArrayUtils.findRangeContainingIndex(mBlockStarts, mBlockSize, index);
+		return mBlocks[i].charAt(index - mBlockStarts[i]);
+	}
+	public void getChars(int start, int end, char[] dest, int destoff)
+	{
+		checkRange("getChars", start, end);
+		start += mStart;
+		end += mStart;
+		//从start所在的文本块开始，依次拷贝每个文本块中的字符
+		for(int i = ArrayUtils.findRangeContainingIndex(mBlockStarts, mBlockSize, start); start < end; ++i)
+		{
+			int blockStart = mBlockStarts[i];
+			int e = Math.min(end, blockStart + mBlocks[i].length());
+			mBlocks[i].getChars(start - blockStart, e - blockStart, dest, destoff);
+			destoff += e - start;
+			start = e;
+		}
+	}
+	public CharSequence subSequence(int start, int end)
+	{
+		checkRange("subSequence", start, end);
+		return new TextSnapshot(mBlocks, mBlockStarts, mBlockSize, mVersion, mStart + start, end - start);
+	}
+	public String toString()
+	{
+		char[] buf = new char[mLength];
+		getChars(0, mLength, buf, 0);
+		return new String(buf);
+	}
+
+	private void checkRange(final String operation, int start, int end)
+	{
+		if (start < 0 || end < start || end > mLength) {
+			throw new IndexOutOfBoundsException(operation + " (" + start + " ... " + end + ") out of length " + mLength);
+		}
+	}
+}
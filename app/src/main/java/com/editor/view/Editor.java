@@ -11,19 +11,37 @@ import android.widget.*;
 import com.editor.*;
 import com.editor.text.*;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import com.editor.base.async.Promise;
 import android.graphics.drawable.*;
 import android.animation.*;
 
 public class Editor extends View
 {
 	private TextPaint mPaint;
-	private EditableList mText;
-	private BlockLayout mLayout;
+	private EditableList mText;   //只读查看模式下为null
+	private BaseLayout mLayout;
+	private boolean mReadOnly;    //是否为只读查看模式(参见viewText)
 	private myInputConnection mInput;
 
 	private Cursor mCursor;
 	private ScrollBars mScrollBars;
 	private ChangeWatcher mChangeWatcher;
+	private CompactTask mCompactTask;
+	private boolean mAppendingLoaded; //正在追加流式加载的文本
 
 	/* defAttrs */
 	private int textColor;
@@ -50,6 +68,7 @@ public class Editor extends View
 		mCursor = new Cursor(cont);
 		mScrollBars = new ScrollBars();
 		mChangeWatcher = new ChangeWatcher();
+		mCompactTask = new CompactTask();
 		setText("", 0, 0);
 		
 		getViewTreeObserver().addOnGlobalLayoutListener(new ViewTreeObserver.OnGlobalLayoutListener(){
@@ -106,24 +125,120 @@ public class Editor extends View
 	public void setText(CharSequence text){
 		setText(text, 0, text.length());
 	}
-	public void setText(CharSequence text,int start,int end)
+	public void setText(CharSequence text,int start,int end){
+		setEditableText(new EditableList(text,start,end), null);
+	}
+	/**
+	 * 加载很长的文本时，在executor中并行创建文本块并测量，可以在其它线程中调用
+	 * 文本非常大时(例如几百MB的日志)，只有最近修改的文本块留在堆中，其余的存储到堆外，以免同时打开多个文件时堆内存不足
+	 * 分块策略只按文本长度选择(参见BlockPolicy.forFile)
+	 */
+	public void setText(CharSequence text, ExecutorService executor)
+	{
+		BlockPolicy policy = BlockPolicy.forFile(null, text.length());
+		if(text.length() >= COLD_STORAGE_THRESHOLD){
+			policy = policy.withHotBlocks(HOT_BLOCKS);
+		}
+		setEditableText(EditableList.load(text, policy, executor), executor);
+	}
+	private static final int COLD_STORAGE_THRESHOLD = 16 * 1024 * 1024; //文本长度达到此值时，使用堆外存储
+	private static final int HOT_BLOCKS = 4096; //使用堆外存储时，最多留在堆中的文本块个数
+	/**
+	 * 在executor中加载文件，必须在主线程中调用，加载完成后返回的Promise在主线程中被解决，加载失败(包括运行时异常和内存不足)时Promise被拒绝
+	 * 加载期间调用setText会取消加载，Promise不会被解决
+	 *
+	 * 较小的文件流式加载: 分段读取并用charset解码，每解码一段就在主线程中追加到文本末尾
+	 * 追加第一段后就可以显示第一屏，行数和滚动范围随着加载增长，加载期间可以滚动和编辑，追加不会移动光标
+	 *
+	 * 达到PARALLEL_LOAD_THRESHOLD的UTF-8文件一次读入堆外内存(参见MappedText.open)，然后并行创建文本块并测量，完成后一次替换文本
+	 * 逐段追加时每段都要通知布局和监视器，文件很大时远比并行加载慢，而且堆外存储的文本块可以直接引用读入的字节
+	 * 读入的是文件的副本而不是映射，之后其它程序修改或截断文件都不会影响文本
+	 * 加载期间显示的是空文本，在其中编辑也会取消加载
+	 *
+	 * 分块策略按文件的类型和大小选择(参见BlockPolicy.forFile)，例如日志使用大的文本块
+	 */
+	public Promise<Editor> loadText(File file, Charset charset, ExecutorService executor)
+	{
+		//文件的字节数只是估计，用来选择分块策略和决定是否使用堆外存储
+		long size = file.length();
+		BlockPolicy policy = BlockPolicy.forFile(file.getName(), size);
+		if(size >= COLD_STORAGE_THRESHOLD){
+			policy = policy.withHotBlocks(HOT_BLOCKS);
+		}
+		setEditableText(new EditableList("", 0, 0, policy), null);
+		if(size >= PARALLEL_LOAD_THRESHOLD && charset.name().equals("UTF-8"))
+		{
+			ParallelLoader loader = new ParallelLoader(file, policy, mText, executor);
+			executor.submit(loader);
+			return loader.promise;
+		}
+		StreamLoader loader = new StreamLoader(file, charset, mText);
+		executor.submit(loader);
+		return loader.promise;
+	}
+	private static final int PARALLEL_LOAD_THRESHOLD = 4 * 1024 * 1024; //文件的字节数达到此值时，读入文件并行加载
+
+	/**
+	 * 以只读的查看模式打开UTF-8文件，用于很大的日志等只需要查看的文件，必须在主线程中调用
+	 * 文件被映射到内存中(参见MappedText.map)，MappedLayout只解码可见的行，因此打开几乎不需要时间，堆中也只有稀疏的索引
+	 * 映射后立即显示，之后在executor中分段建立索引，行数和滚动范围随着索引增长，索引完成后返回的Promise在主线程中被解决，失败时被拒绝
+	 * 查看期间不能编辑，getText返回null，可以移动光标和选择，调用setText或loadText会退出查看模式
+	 */
+	public Promise<Editor> viewText(File file, ExecutorService executor)
+	{
+		setEditableText(new EditableList("", 0, 0), null);
+		MappedViewer viewer = new MappedViewer(file, mText);
+		executor.submit(viewer);
+		return viewer.promise;
+	}
+	
+	private void setEditableText(EditableList text, ExecutorService executor)
 	{
-		mText = new EditableList(text,start,end);
-		mText.setTextWatcher(mChangeWatcher);
 		if(mLayout != null){
 			int tabSize = mLayout.getTabSize();
 			int lineColor = mLayout.getLineNumColor();
 			float lineSpacing = mLayout.getLineSpacing();
-			mLayout = new BlockLayout(mText, mPaint, tabSize, lineColor, lineSpacing);
+			installText(text, new BlockLayout(text, mPaint, tabSize, lineColor, lineSpacing, executor));
 		}else{
-			mLayout = new BlockLayout(mText, mPaint, TabSize, lineNumberColor, lineSpacing);
+			installText(text, new BlockLayout(text, mPaint, TabSize, lineNumberColor, lineSpacing, executor));
+		}
+	}
+	/* 使用已经创建好的布局，布局必须是为text创建的 */
+	private void installText(EditableList text, BlockLayout layout)
+	{
+		boolean wasReadOnly = mReadOnly;
+		mReadOnly = false;
+		mText = text;
+		mText.setTextWatcher(mChangeWatcher);
+		mLayout = layout;
+		if(wasReadOnly){
+			restartInput();
 		}
 		//scrollTo(Integer.MAX_VALUE, Integer.MAX_VALUE);
 	}
+	/* 进入只读查看模式，输入法需要重新连接，光标回到开头 */
+	private void installViewer(MappedLayout layout)
+	{
+		mReadOnly = true;
+		mText = null;
+		mLayout = layout;
+		mCursor.selectionStart = mCursor.selectionEnd = 0;
+		restartInput();
+		invalidate();
+	}
+	private void restartInput()
+	{
+		InputMethodManager inputMethodManager = (InputMethodManager) getContext().getSystemService(Context.INPUT_METHOD_SERVICE);
+		inputMethodManager.restartInput(this);
+	}
 	
+	/* 只读查看模式下返回null */
 	public Editable getText(){
 		return mText;
 	}
+	public boolean isReadOnly(){
+		return mReadOnly;
+	}
 	public TextPaint getPaint(){
 		return mPaint;
 	}
@@ -133,12 +248,12 @@ public class Editor extends View
 	
 	@Override
 	public boolean onCheckIsTextEditor(){
-		return true;
+		return !mReadOnly;
 	}
 	@Override
 	public InputConnection onCreateInputConnection(EditorInfo outAttrs){
-		//返回与输入法建立连接的InputConnection
-		return mInput;
+		//返回与输入法建立连接的InputConnection，只读时不连接
+		return mReadOnly ? null : mInput;
 	}
 
 	public void setInputEnabled(boolean enabled){
@@ -165,6 +280,8 @@ public class Editor extends View
 	{
 		/* 是否启用输入 */
 		private boolean InputEnabled = true;
+		/* 输入法开始了几层批量编辑还没有结束 */
+		private int batchDepth;
 		
 		public boolean sendKeyEvent(KeyEvent event)
 		{
@@ -269,19 +386,52 @@ public class Editor extends View
 			return false;
 		}
 		public boolean beginBatchEdit(){
-			return false;
+			if(mReadOnly){
+				return false;
+			}
+			//输入法连续的修改合并为一次刷新
+			mText.beginBatchEdit();
+			batchDepth++;
+			return true;
 		}	
-		public boolean endBatchEdit(){
+		public boolean endBatchEdit()
+		{
+			if(batchDepth == 0){
+				return false;
+			}
+			if(mReadOnly){
+				//批量编辑中途进入了只读模式，之前的文本已经被丢弃
+				batchDepth = 0;
+				return false;
+			}
+			batchDepth--;
+			int start = mCursor.selectionStart;
+			int end = mCursor.selectionEnd;
+			mText.endBatchEdit();
+			if(mText.isInBatchEdit()){
+				return true;
+			}
+			//onTextChanged会将光标放在合并的范围末尾，恢复为最后一次输入后的位置
+			mCursor.setSelection(start, end);
 			return false;
 		}
 		public Handler getHandler(){
 			return Editor.this.getHandler();
 		}
-		public void closeConnection(){}
+		public void closeConnection()
+		{
+			//输入法在批量编辑中途断开时，结束它开始的所有批量编辑，否则之后的修改都不会通知
+			while(batchDepth > 0){
+				endBatchEdit();
+			}
+		}
 	}
 
 	/* 输入内容时调用 */
 	protected void onInputContent(CharSequence text, int newCursorPosition, int before, int after){
+		if(mReadOnly){
+			return;
+		}
 		mCursor.sendInputContent(text,newCursorPosition,before,after);
 	}
 	
@@ -349,7 +499,7 @@ public class Editor extends View
 			if(start != selectionStart || end != selectionEnd){
 				selectionStart = start;
 				selectionEnd = end;
-				mChangeWatcher.onSelectionChanged(mText, start, end);
+				mChangeWatcher.onSelectionChanged(mLayout.getText(), start, end);
 			}
 			
 			//停止闪烁，进入等待
@@ -365,14 +515,21 @@ public class Editor extends View
 		
 		public void sendInputContent(CharSequence text, int newCursorPosition, int before, int after)
 		{
+			int index = -1;
 			if(text != null){
 				mText.replace(selectionStart, selectionEnd, text);
+				index = selectionStart + text.length();
 			}
 			else if(before > 0 || after > 0){
 				int len = mText.length();
 				before = before > selectionStart ? selectionStart : before;
 				after = selectionEnd+after > len ? len-selectionEnd : after;
 				mText.delete(selectionStart-before, selectionEnd+after);
+				index = selectionStart-before;
+			}
+			if(index >= 0 && mText.isInBatchEdit()){
+				//批量编辑时onTextChanged被推迟，但之后的输入依赖光标位置，先直接移动光标，结束时再通知
+				selectionStart = selectionEnd = index;
 			}
 		}
 		
@@ -501,7 +658,7 @@ public class Editor extends View
 			return mLayout.getOffsetVertical(follow);
 		}
 		private int checkOffset(int offset){
-			int length = mText.length();
+			int length = mLayout.getText().length();
 			return offset < 0 ? 0 : (offset > length ? length : offset);
 		}
 	}
@@ -532,12 +689,17 @@ public class Editor extends View
 	protected void beforeTextChanged(CharSequence text, int start, int before, int after){}
 
 	protected void onTextChanged(CharSequence text, int start, int before, int after){
+		if(mAppendingLoaded){
+			//流式加载的文本追加在末尾，光标和选择区域都在它之前，不需要移动
+			return;
+		}
 		int index = start + after;
 		mCursor.setSelection(index, index);	
 	}
 	protected void afterTextChanged(Editable text){
-		//文本变化后，刷新界面
+		//文本变化后，刷新界面，并在空闲时整理文本块的碎片
 		invalidate();
+		mCompactTask.schedule();
 	}
 	
 	protected void onSelectionChanged(CharSequence text, int start, int end)
@@ -797,6 +959,337 @@ public class Editor extends View
 		}
 	}
 	
+	/**
+	 * 在主线程空闲时，分批整理文本块的碎片，直到完整检查一遍所有文本块都没有可以合并的
+	 * 每批只检查BUDGET个文本块，某一批没有合并不代表其它地方也没有，因此要累计连续没有合并的文本块个数
+	 */
+	private final class CompactTask implements MessageQueue.IdleHandler
+	{
+		private static final int BUDGET = 64;
+		private boolean scheduled;
+		private int clean; //自上次合并以来，检查过的没有可以合并的文本块个数
+
+		public void schedule()
+		{
+			//文本修改后，已经检查过的地方也可能产生新的碎片
+			clean = 0;
+			if(!scheduled){
+				scheduled = true;
+				Looper.myQueue().addIdleHandler(this);
+			}
+		}
+
+		@Override
+		public boolean queueIdle()
+		{
+			if(mText == null){
+				//已经进入只读查看模式
+				scheduled = false;
+				return false;
+			}
+			if(mText.compactBlocks(BUDGET) > 0){
+				clean = 0;
+			}else{
+				clean += BUDGET;
+			}
+			//走到末尾的那一批检查的文本块少于BUDGET，多检查一批才能保证绕回后覆盖了所有文本块
+			//返回true时保留任务，在下次空闲时继续整理
+			scheduled = clean < mText.getBlockSize() + BUDGET;
+			return scheduled;
+		}
+	}
+
+	/**
+	 * 在后台线程中读入文件，并行创建文本块和布局，然后在主线程中替换target
+	 * 布局的参数在主线程中读取，布局在后台线程中创建，它在替换前不会被其它线程访问
+	 */
+	private final class ParallelLoader implements Runnable
+	{
+		private final File file;
+		private final BlockPolicy policy;
+		private final EditableList target;
+		private final int targetVersion;
+		private final ExecutorService executor;
+		private final Handler handler;
+		private final Promise<Editor> promise;
+		private final int tabSize, lineColor;
+		private final float spacing;
+
+		public ParallelLoader(File file, BlockPolicy policy, EditableList target, ExecutorService executor)
+		{
+			this.file = file;
+			this.policy = policy;
+			this.target = target;
+			this.targetVersion = target.getModCount();
+			this.executor = executor;
+			this.handler = new Handler();
+			this.promise = new Promise<>();
+			this.tabSize = mLayout.getTabSize();
+			this.lineColor = mLayout.getLineNumColor();
+			this.spacing = mLayout.getLineSpacing();
+		}
+
+		@Override
+		public void run()
+		{
+			try{
+				MappedText text = MappedText.open(file);
+				final EditableList list = EditableList.load(text, policy, executor);
+				final BlockLayout layout = new BlockLayout(list, mPaint, tabSize, lineColor, spacing, executor);
+				handler.post(new Runnable(){
+						@Override
+						public void run(){
+							if(isCurrent()){
+								installText(list, layout);
+								invalidate();
+								promise.resolve(Editor.this);
+							}
+						}
+					});
+			}
+			catch(final Throwable e){
+				//除了读取失败，文件过大，创建文本块的任务失败和内存不足也要拒绝，否则已添加的标签页会一直是空的
+				handler.post(new Runnable(){
+						@Override
+						public void run(){
+							if(isCurrent()){
+								promise.reject(e);
+							}
+						}
+					});
+			}
+		}
+
+		/* 文本没有被替换，也没有被编辑 */
+		private boolean isCurrent(){
+			return mText == target && target.getModCount() == targetVersion;
+		}
+	}
+
+	/**
+	 * 在后台线程中映射文件，在主线程中切换到查看模式，然后分段建立索引，每段索引后刷新界面
+	 * 第一段很小，以便尽快显示第一屏
+	 */
+	private final class MappedViewer implements Runnable
+	{
+		private static final int FIRST_INDEX_BYTES = 64 * 1024;
+		private static final int INDEX_BYTES = 8 * 1024 * 1024; //每次索引的字节数
+
+		private final File file;
+		private final EditableList target;
+		private final Handler handler;
+		private final Promise<Editor> promise;
+		private final int tabSize, lineColor;
+		private final float spacing;
+		private volatile MappedLayout layout;
+		private volatile boolean cancelled;
+
+		public MappedViewer(File file, EditableList target)
+		{
+			this.file = file;
+			this.target = target;
+			this.handler = new Handler();
+			this.promise = new Promise<>();
+			this.tabSize = mLayout.getTabSize();
+			this.lineColor = mLayout.getLineNumColor();
+			this.spacing = mLayout.getLineSpacing();
+		}
+
+		@Override
+		public void run()
+		{
+			try{
+				final MappedText text = MappedText.map(file);
+				handler.post(new Runnable(){
+						@Override
+						public void run(){
+							if(mText != target || target.length() != 0){
+								//打开期间文本被替换或编辑，放弃查看
+								cancelled = true;
+								return;
+							}
+							layout = new MappedLayout(text, mPaint, tabSize, lineColor, spacing);
+							installViewer(layout);
+						}
+					});
+				int budget = FIRST_INDEX_BYTES;
+				boolean done = false;
+				while(!done && !cancelled){
+					done = text.index(budget);
+					budget = INDEX_BYTES;
+					handler.post(new Runnable(){
+							@Override
+							public void run(){
+								if(isCurrent()){
+									invalidate();
+								}
+							}
+						});
+				}
+				if(done){
+					handler.post(new Runnable(){
+							@Override
+							public void run(){
+								if(isCurrent()){
+									promise.resolve(Editor.this);
+								}
+							}
+						});
+				}
+			}
+			catch(final Throwable e){
+				handler.post(new Runnable(){
+						@Override
+						public void run(){
+							if(!cancelled && (isCurrent() || mText == target)){
+								promise.reject(e);
+							}
+						}
+					});
+			}
+		}
+
+		/* 仍然在查看这个文件，退出查看模式后停止索引 */
+		private boolean isCurrent()
+		{
+			if(cancelled){
+				return false;
+			}
+			if(layout == null || mLayout != layout){
+				cancelled = layout != null;
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * 在后台线程中读取并解码文件，每段文本在主线程中追加到target的末尾
+	 * 最多只有MAX_PENDING段文本等待追加，主线程来不及追加时后台线程会等待，以免解码的文本堆积在消息队列中
+	 */
+	private final class StreamLoader implements Runnable
+	{
+		private static final int CHUNK_BYTES = 64 * 1024; //每次读取的字节数
+		private static final int MAX_PENDING = 4;
+
+		private final File file;
+		private final CharsetDecoder decoder;
+		private final EditableList target;
+		private final Handler handler;
+		private final Semaphore pending;
+		private final Promise<Editor> promise;
+		private volatile boolean cancelled;
+
+		public StreamLoader(File file, Charset charset, EditableList target)
+		{
+			this.file = file;
+			//无效的字节解码为替换字符，不会中断加载
+			this.decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			this.target = target;
+			this.handler = new Handler();
+			this.pending = new Semaphore(MAX_PENDING);
+			this.promise = new Promise<>();
+		}
+
+		@Override
+		public void run()
+		{
+			ByteBuffer bytes = ByteBuffer.allocate(CHUNK_BYTES);
+			CharBuffer chars = CharBuffer.allocate(CHUNK_BYTES);
+			InputStream input = null;
+			Throwable failure = null;
+			try{
+				input = new FileInputStream(file);
+				ReadableByteChannel channel = Channels.newChannel(input);
+				boolean eof = false;
+				while(!eof && !cancelled)
+				{
+					//填满缓冲区后再解码，每段文本不会太短
+					while(bytes.hasRemaining()){
+						if(channel.read(bytes) < 0){
+							eof = true;
+							break;
+						}
+					}
+					bytes.flip();
+					//结尾不完整的字节序列留在缓冲区中，与下次读取的字节一起解码
+					while(decoder.decode(bytes, chars, eof).isOverflow()){
+						emit(chars);
+					}
+					bytes.compact();
+					if(eof){
+						while(decoder.flush(chars).isOverflow()){
+							emit(chars);
+						}
+					}
+					emit(chars);
+				}
+			}
+			catch(Throwable e){
+				//读取或解码失败时已追加的文本是不完整的，不能当作加载完成，运行时异常和内存不足也一样
+				failure = e;
+			}
+			finally{
+				if(input != null){
+					try{
+						input.close();
+					}catch(IOException e){}
+				}
+			}
+			final Throwable error = failure;
+			handler.post(new Runnable(){
+					@Override
+					public void run(){
+						if(cancelled || mText != target){
+							return;
+						}
+						if(error == null){
+							promise.resolve(Editor.this);
+						}else{
+							promise.reject(error);
+						}
+					}
+				});
+		}
+
+		/* 将chars中解码的文本交给主线程追加，并清空chars */
+		private void emit(CharBuffer chars) throws InterruptedException
+		{
+			chars.flip();
+			if(chars.hasRemaining() && !cancelled)
+			{
+				final String chunk = chars.toString();
+				pending.acquire();
+				handler.post(new Runnable(){
+						@Override
+						public void run(){
+							pending.release();
+							append(chunk);
+						}
+					});
+			}
+			chars.clear();
+		}
+
+		private void append(String chunk)
+		{
+			if(mText != target){
+				//文本已被替换，停止加载
+				cancelled = true;
+				return;
+			}
+			mAppendingLoaded = true;
+			try{
+				target.append(chunk);
+			}
+			finally{
+				mAppendingLoaded = false;
+			}
+		}
+	}
+
 	private final class ChangeWatcher implements TextWatcher, SelectionWatcher
 	{
 		private ArrayList<TextWatcher> textWatchers;
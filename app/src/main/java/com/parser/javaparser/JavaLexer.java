@@ -6,14 +6,43 @@ import java.util.regex.*;
 import java.lang.invoke.*;
 import android.text.*;
 
+/**
+ * 词法分析只通过charAt(index)读取字符，它从一段缓存的字符中读取，缓存之外的字符用getChars一次读取一段
+ * 文本通常是EditableList的快照(TextSnapshot)或视图，它们的charAt每次都要查找文本块，而getChars一段只需查找一次
+ * 分析几乎总是向后进行，因此缓存从读取的位置稍前开始，令牌前后相邻的少量回看也不会重新读取
+ */
 public class JavaLexer
 {
-	private String mText;
+	private CharSequence mText;
+	private final int mLength;
 	private List<Token> mTokens;
 	
-	public JavaLexer(String text){
+	private final char[] mBuf = new char[BUFFER_SIZE]; //从mText中读取的一段字符
+	private int mBufStart; //mBuf中字符的起始位置
+	private int mBufEnd;   //mBuf中字符的结束位置
+	private final CharSequence mChars; //通过缓存读取mText的序列，用于正则表达式匹配
+	
+	private static final int BUFFER_SIZE = 4096;
+	private static final int LOOK_BEHIND = 256; //读取新的一段时，在读取位置之前保留的字符数
+	
+	public JavaLexer(CharSequence text){
 		mText = text;
-		mTokens = new LinkedList<>();
+		mLength = text.length();
+		mTokens = new ArrayList<>();
+		mChars = new CharSequence(){
+			public int length(){
+				return mLength;
+			}
+			public char charAt(int index){
+				return JavaLexer.this.charAt(index);
+			}
+			public CharSequence subSequence(int start, int end){
+				return mText.subSequence(start, end);
+			}
+			public String toString(){
+				return mText.toString();
+			}
+		};
 		spiltText();
 		analyzeTokens();
 	}
@@ -21,19 +50,59 @@ public class JavaLexer
 		return mTokens;
 	}
 	
+	/* 读取index处的字符，不在缓存中时读取index附近的一段 */
+	private char charAt(int index)
+	{
+		if(index < mBufStart || index >= mBufEnd){
+			fillBuffer(index);
+		}
+		return mBuf[index - mBufStart];
+	}
+	private void fillBuffer(int index)
+	{
+		if(index < 0 || index >= mLength){
+			throw new IndexOutOfBoundsException("charAt: " + index + " out of length " + mLength);
+		}
+		int start = Math.max(0, index - LOOK_BEHIND);
+		int end = Math.min(mLength, start + BUFFER_SIZE);
+		TextUtils.getChars(mText, start, end, mBuf, 0);
+		mBufStart = start;
+		mBufEnd = end;
+	}
+	/* 从index开始寻找字符c，找不到返回-1 */
+	private int indexOf(char c, int index)
+	{
+		for(; index < mLength; ++index){
+			if(charAt(index) == c){
+				return index;
+			}
+		}
+		return -1;
+	}
+	/* 从index开始寻找注释的结尾，返回其中*的位置，找不到返回-1 */
+	private int indexOfCommentEnd(int index)
+	{
+		for(; index < mLength - 1; ++index){
+			if(charAt(index) == '*' && charAt(index + 1) == '/'){
+				return index;
+			}
+		}
+		return -1;
+	}
+	
 	/**
 	 * 将源文本以空白字符或运算符分隔为一个个词的Token，存储在cachedTokens中
 	 * 无效的空白字符被舍弃，单个运算符被算作一个Token，整段字符串和注释被算作一个Token
 	 */
 	private void spiltText()
 	{
-		TimeTrack track = new TimeTrack("JavaLexer spiltText", mText.length(), 10000);
+		TimeTrack track = new TimeTrack("JavaLexer spiltText", mLength, 10000);
 		int index = 0;
-		while(index < mText.length())
+		while(index < mLength)
 		{
 			//寻找下一个词的起始位置
 			int start = findTokenStart(index);
-			if (start == mText.length()){
+			if (start == mLength){
 				break;
 			}
 			//寻找当前的词的末尾位置
@@ -48,11 +117,11 @@ public class JavaLexer
 	
 	private void spiltText2()
 	{
-		TimeTrack track = new TimeTrack("JavaLexer spiltText", mText.length(), 10000);
-		final int length = mText.length();
+		TimeTrack track = new TimeTrack("JavaLexer spiltText", mLength, 10000);
+		final int length = mLength;
 		for(int index = 0; index < length; ++index)
 		{
-			char ch = mText.charAt(index);
+			char ch = charAt(index);
 			if(operators.indexOf(ch) > -1){
 				mTokens.add(new Token(index, index+1, TokenType.OPERATOR));
 			}
@@ -62,7 +131,7 @@ public class JavaLexer
 	
 	private int findTokenStart(int index){
 		// 跳过空白字符
-        while (index < mText.length() && Character.isWhitespace(mText.charAt(index))) {
+        while (index < mLength && Character.isWhitespace(charAt(index))) {
             index++;
         }
 		return index;
@@ -71,23 +140,23 @@ public class JavaLexer
 	private int findTokenEnd(int index)
 	{
 		//注释
-		if(index < mText.length() - 1 && mText.charAt(index) == '/'){
-			if(mText.charAt(index + 1) == '/'){
-				int find = mText.indexOf('\n', index + 2);
-				return find == -1 ? mText.length() : find;
+		if(index < mLength - 1 && charAt(index) == '/'){
+			if(charAt(index + 1) == '/'){
+				int find = indexOf('\n', index + 2);
+				return find == -1 ? mLength : find;
 			}
-			if(mText.charAt(index + 1) == '*'){
-				int find = mText.indexOf("*/", index + 2);
-				return find == -1 ? mText.length() : find + 2; // +2 to include "*/"
+			if(charAt(index + 1) == '*'){
+				int find = indexOfCommentEnd(index + 2);
+				return find == -1 ? mLength : find + 2; // +2 to include "*/"
 			}
 		}
 		//字符串
-		if(mText.charAt(index) == '"')
+		if(charAt(index) == '"')
 		{
 			boolean ignored = false;
 			int end = index + 1;
-            for (; end < mText.length(); end++){
-				char ch = mText.charAt(end);
+            for (; end < mLength; end++){
+				char ch = charAt(end);
 				if(ch == '\n'){
 					return end;
 				}
@@ -101,16 +170,16 @@ public class JavaLexer
 					ignored = false;
 				}
             }
-			return mText.length();
+			return mLength;
         }
 		//字符
-		if(mText.charAt(index) == '\'')
+		if(charAt(index) == '\'')
 		{
 			int count = 0;
 			boolean ignored = false;
 			int end = index + 1;
-			for (; end < mText.length(); end++){
-				char ch = mText.charAt(end);
+			for (; end < mLength; end++){
+				char ch = charAt(end);
 				if(ch == '\n'){
 					return end;
 				}
@@ -130,23 +199,25 @@ public class JavaLexer
 					count++;
 				}
             }
-			return mText.length();
+			return mLength;
 		}
 		//数字
-		if(mText.charAt(index) == '.' || Character.isDigit(mText.charAt(index))){
-			Matcher ma = Pattern.compile("((\\d+\\.(\\d*)?|\\.\\d+)([eE][+-]?\\d+)?[fF]?|(0b[01]+|0o[0-7]+|0x[0-9a-fA-F]+|[0-9]+))").matcher(mText);
-			if(ma.find(index) && ma.start() == index){
+		if(charAt(index) == '.' || Character.isDigit(charAt(index))){
+			//只匹配从index开始的数字，而不是向后寻找下一个数字
+			Matcher ma = NUMBER_PREFIX.matcher(mChars);
+			ma.region(index, mLength);
+			if(ma.lookingAt()){
 				return ma.end();
 			}
 		}
 		//运算符
-		if(operators.indexOf(mText.charAt(index)) > -1){
+		if(operators.indexOf(charAt(index)) > -1){
 			return index + 1; //运算符情况较复杂，此时还不能判定连续的运算符是否为一个
 		}
 		//标识符(只要不为空白字符或者运算符就可以)
 		//可能是字母，汉字，数字或下划线，但它们都不是分隔符
-		while (index < mText.length() && !Character.isWhitespace(mText.charAt(index))
-			   && operators.indexOf(mText.charAt(index)) < 0) {
+		while (index < mLength && !Character.isWhitespace(charAt(index))
+			   && operators.indexOf(charAt(index)) < 0) {
             index++;
         }
 		return index;
@@ -170,15 +241,14 @@ public class JavaLexer
 		int i = 0;
 		for(Token token : mTokens)
 		{
-			String text = mText.substring(token.start, token.end);
+			String text = TextUtils.substring(mText, token.start, token.end);
 			if (text.startsWith("//") || text.startsWith("/*")) {
                 token.type = TokenType.COMMENT;
             } else if (text.charAt(0) == '"') {
                 token.type = TokenType.STRING_LITERAL;
             } else if (text.charAt(0) == '\'') {
                 token.type = TokenType.CHAR_LITERAL;
-			} else if(text.matches("(0b[01]+|0o[0-7]+|0x[0-9a-fA-F]+|[0-9]+)") 
-					||text.matches("(\\d+(\\.\\d*)?|\\.\\d+)([eE][+-]?\\d+)?[fF]?")){
+			} else if(INTEGER.matcher(text).matches() || DECIMAL.matcher(text).matches()){
 				token.type = TokenType.NUMBER;
 			} else if (operators.indexOf(text.charAt(0)) > -1) {
                 token.type = TokenType.OPERATOR;
@@ -186,7 +256,7 @@ public class JavaLexer
                 token.type = TokenType.KEYWORD;
             } else if (constants.contains(text)){
 				token.type = TokenType.CONSTANT;
-			} else if (text.matches("[a-zA-Z_][a-zA-Z0-9_]*")) {
+			} else if (IDENTIFIER.matcher(text).matches()) {
                 token.type = TokenType.IDENTIFIER;
 			} else {
 				token.type = TokenType.UNKNOWN;
@@ -201,7 +271,6 @@ public class JavaLexer
 		for(int i = 0; i < mTokens.size(); ++i)
 		{
 			Token token = mTokens.get(i);
-			String text = mText.substring(token.start, token.end);
 			if(i > 0){
 				if(tokenOperator(mTokens.get(i-1)) == '@' && token.type == TokenType.IDENTIFIER){
 					token.type = TokenType.TYPE;
@@ -210,7 +279,6 @@ public class JavaLexer
 			if(i < mTokens.size() - 1)
 			{
 				Token next = mTokens.get(i + 1);
-				String nText = mText.substring(next.start, next.end);
 				if(token.type == TokenType.IDENTIFIER){
 					if(bothWithOperator(i)){
 						token.type = TokenType.VARIABLE;
@@ -221,7 +289,7 @@ public class JavaLexer
 							}
 						}
 					}
-					char ch = nText.charAt(0);
+					char ch = charAt(next.start);
 					switch(ch){
 						case '(':
 							token.type = TokenType.FUNCTION;
@@ -314,10 +382,10 @@ public class JavaLexer
 		    || (i > 0 && mTokens.get(i-1).type == TokenType.OPERATOR); //instanceof运算符
 	}
 	private char tokenOperator(Token token){
-		return token.type == TokenType.OPERATOR ? tokenString(token).charAt(0) : 0;
+		return token.type == TokenType.OPERATOR ? charAt(token.start) : 0;
 	}
 	private String tokenString(Token token){
-		return mText.substring(token.start, token.end);
+		return TextUtils.substring(mText, token.start, token.end);
 	}
 	
 	private static final String[] keys = new String[]{
@@ -341,4 +409,9 @@ public class JavaLexer
 	private static final HashSet<String> constants = new HashSet<>(Arrays.asList(consts)); 
 	
 	private static final String operators = "(){}[]=.:,;+-*/%^|&<>?@!~'\"";
+	
+	private static final Pattern NUMBER_PREFIX = Pattern.compile("((\\d+\\.(\\d*)?|\\.\\d+)([eE][+-]?\\d+)?[fF]?|(0b[01]+|0o[0-7]+|0x[0-9a-fA-F]+|[0-9]+))");
+	private static final Pattern INTEGER = Pattern.compile("(0b[01]+|0o[0-7]+|0x[0-9a-fA-F]+|[0-9]+)");
+	private static final Pattern DECIMAL = Pattern.compile("(\\d+(\\.\\d*)?|\\.\\d+)([eE][+-]?\\d+)?[fF]?");
+	private static final Pattern IDENTIFIER = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
 }
@@ -6,7 +6,7 @@ import com.parser.javaparser.base.*;
 
 public class JavaParser
 {
-	public static List<Token> parser(String code)
+	public static List<Token> parser(CharSequence code)
 	{
 		return new JavaLexer(code).tokens();
 	}